@@ -0,0 +1,36 @@
+import java.io.*;
+import java.nio.channels.SocketChannel;
+
+/**
+ * BenchConnection
+ *
+ * Socket-less Connection for benchmarks: frames are queued exactly as
+ * for a real client and drained at once by an infinitely fast "writer",
+ * so only the server side of the fan-out is measured. Every instance
+ * shares one unconnected channel, which is never read or written.
+ */
+public class BenchConnection extends Connection {
+    private static SocketChannel channel;
+
+    BenchConnection(ChatServer server, int id) throws IOException {
+        super(server, shared_channel(), id);
+    }
+
+    private static synchronized SocketChannel shared_channel() throws IOException {
+        if (channel == null)
+            channel = SocketChannel.open();
+
+        return channel;
+    }
+
+    void schedule_flush() {
+        outbound.clear();
+    }
+
+    boolean on_writer_thread() {
+        return false;
+    }
+
+    void pause_reading(long nanos) {
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.*;
+import jedirc.bench.Harnesses;
+
+/**
+ * BroadcastBench
+ *
+ * Harness for BroadcastBenchmark: recipients clients in the default
+ * channel, with one of them sending a line through the same
+ * ChatServer.handle() path a real MESSAGE frame takes.
+ */
+public class BroadcastBench implements Harnesses.Broadcast {
+    private final ChatServer server;
+    private final Message line;
+    private BenchConnection sender;
+
+    public BroadcastBench(int recipients) throws IOException {
+        server = new ChatServer(0);
+
+        for (int i = 0; i < recipients; i++) {
+            BenchConnection c = new BenchConnection(server, i);
+            server.handle(c, new Message(Message.USER, "user" + i));
+
+            if (sender == null)
+                sender = c;
+        }
+
+        line = new Message(Message.MESSAGE, "the quick brown fox jumps over the lazy dog");
+    }
+
+    public void broadcast() throws IOException {
+        server.handle(sender, line);
+    }
+}
@@ -0,0 +1,60 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import jedirc.bench.Harnesses;
+
+/**
+ * CodecBench
+ *
+ * Harness for MessageCodecBenchmark. The serialization side reuses one
+ * ObjectOutputStream, reset per message, as the old long-lived
+ * connection streams effectively did.
+ */
+public class CodecBench implements Harnesses.Codec {
+    private final Message message;
+    private final ByteArrayOutputStream bytes;
+    private final ObjectOutputStream output;
+    private final byte[] serialized;
+    private final ByteBuffer frame;
+    private final FrameDecoder decoder;
+
+    public CodecBench(int length) throws IOException {
+        char[] text = new char[length];
+        Arrays.fill(text, 'x');
+        message = new Message(Message.MESSAGE, new String(text));
+
+        bytes = new ByteArrayOutputStream();
+        output = new ObjectOutputStream(bytes);
+
+        ByteArrayOutputStream whole = new ByteArrayOutputStream();
+        ObjectOutputStream o = new ObjectOutputStream(whole);
+        o.writeObject(message);
+        o.close();
+        serialized = whole.toByteArray();
+
+        frame = FrameEncoder.encode(message);
+        decoder = new FrameDecoder();
+        decoder.decode(FrameEncoder.preamble());
+    }
+
+    public int serialization_encode() throws IOException {
+        bytes.reset();
+        output.reset();
+        output.writeObject(message);
+        output.flush();
+
+        return bytes.size();
+    }
+
+    public Object serialization_decode() throws IOException, ClassNotFoundException {
+        return new ObjectInputStream(new ByteArrayInputStream(serialized)).readObject();
+    }
+
+    public Object frame_encode() throws IOException {
+        return FrameEncoder.encode(message);
+    }
+
+    public Object frame_decode() throws IOException {
+        return decoder.decode(frame.duplicate());
+    }
+}
@@ -0,0 +1,44 @@
+import jedirc.bench.Harnesses;
+
+/**
+ * RegistryBench
+ *
+ * Harness for RegistryBenchmark.
+ */
+public class RegistryBench implements Harnesses.Registry {
+    private static final int CHURN_NICKS = 1024;
+
+    private final ClientRegistry<Object> registry;
+    private final String[] nicks;
+    private final String[] churn_nicks;
+    private int next;
+
+    public RegistryBench(int size) {
+        registry = new ClientRegistry<Object>();
+        nicks = new String[size];
+        churn_nicks = new String[CHURN_NICKS];
+
+        for (int i = 0; i < size; i++) {
+            nicks[i] = "user" + i;
+            registry.add(registry.next_id(), nicks[i], new Object());
+        }
+
+        for (int i = 0; i < CHURN_NICKS; i++)
+            churn_nicks[i] = "churn" + i;
+    }
+
+    public Object join_leave() {
+        int id = registry.next_id();
+        String nick = churn_nicks[id % CHURN_NICKS];
+
+        registry.add(id, nick, this);
+
+        return registry.remove(id, nick);
+    }
+
+    public Object lookup() {
+        next = (next + 1) % nicks.length;
+
+        return registry.find(nicks[next]);
+    }
+}
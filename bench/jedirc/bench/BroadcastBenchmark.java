@@ -0,0 +1,30 @@
+package jedirc.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * BroadcastBenchmark
+ *
+ * Cost of one chat line fanned out to every member of a channel (see
+ * BroadcastBench).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BroadcastBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int recipients;
+
+    private Harnesses.Broadcast harness;
+
+    @Setup
+    public void setup() throws Exception {
+        harness = Harnesses.create(Harnesses.Broadcast.class, "BroadcastBench", recipients);
+    }
+
+    @Benchmark
+    public void broadcast() throws Exception {
+        harness.broadcast();
+    }
+}
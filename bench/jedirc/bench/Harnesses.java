@@ -0,0 +1,39 @@
+package jedirc.bench;
+
+/**
+ * Harnesses
+ *
+ * JedIRC lives in the default package, which named packages cannot
+ * import, while JMH insists on benchmarks having a package. Each
+ * benchmark therefore drives a small harness class compiled next to the
+ * application; it is looked up by name once during setup and called
+ * through an interface from then on.
+ */
+public final class Harnesses {
+    private Harnesses() {
+    }
+
+    public static <T> T create(Class<T> type, String name, int param) throws Exception {
+        return type.cast(Class.forName(name).getConstructor(int.class).newInstance(param));
+    }
+
+    public interface Codec {
+        int serialization_encode() throws Exception;
+
+        Object serialization_decode() throws Exception;
+
+        Object frame_encode() throws Exception;
+
+        Object frame_decode() throws Exception;
+    }
+
+    public interface Broadcast {
+        void broadcast() throws Exception;
+    }
+
+    public interface Registry {
+        Object join_leave();
+
+        Object lookup();
+    }
+}
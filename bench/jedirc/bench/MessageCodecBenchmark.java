@@ -0,0 +1,45 @@
+package jedirc.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * MessageCodecBenchmark
+ *
+ * Encoding and decoding one Message with the binary frame codec against
+ * the Java serialization it replaced (see CodecBench).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MessageCodecBenchmark {
+    @Param({"16", "256", "4096"})
+    public int length;
+
+    private Harnesses.Codec codec;
+
+    @Setup
+    public void setup() throws Exception {
+        codec = Harnesses.create(Harnesses.Codec.class, "CodecBench", length);
+    }
+
+    @Benchmark
+    public int serialization_encode() throws Exception {
+        return codec.serialization_encode();
+    }
+
+    @Benchmark
+    public Object serialization_decode() throws Exception {
+        return codec.serialization_decode();
+    }
+
+    @Benchmark
+    public Object frame_encode() throws Exception {
+        return codec.frame_encode();
+    }
+
+    @Benchmark
+    public Object frame_decode() throws Exception {
+        return codec.frame_decode();
+    }
+}
@@ -0,0 +1,35 @@
+package jedirc.bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * RegistryBenchmark
+ *
+ * Join/leave churn and nickname lookup against a ClientRegistry already
+ * holding size clients (see RegistryBench).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RegistryBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private Harnesses.Registry registry;
+
+    @Setup
+    public void setup() throws Exception {
+        registry = Harnesses.create(Harnesses.Registry.class, "RegistryBench", size);
+    }
+
+    @Benchmark
+    public Object join_leave() {
+        return registry.join_leave();
+    }
+
+    @Benchmark
+    public Object lookup() {
+        return registry.lookup();
+    }
+}
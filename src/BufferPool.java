@@ -0,0 +1,218 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * BufferPool
+ *
+ * Direct ByteBuffers for connection I/O and encoded frames, carved out of
+ * 1 MiB slabs in power-of-two size classes from 256 bytes to 128 KiB and
+ * recycled, so steady traffic allocates no buffers at all. Shared by
+ * every connection in the JVM. Requests larger than the biggest class,
+ * or made once a class has reached its share of jedirc.pool.max_mb, get
+ * a plain heap buffer that release() simply lets go.
+ *
+ * With -Djedirc.pool.debug=true releasing a buffer twice throws, and a
+ * Frame that is garbage collected without being released is reported
+ * with the stack that allocated it, and its buffer reclaimed.
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 8;
+    private static final int MAX_SHIFT = 17;
+    private static final int SLAB_SIZE = 1 << 20;
+
+    private static final SizeClass[] classes;
+    private static final Counter in_use = new Counter();
+    private static final AtomicLong slab_bytes = new AtomicLong();
+    private static final AtomicLong exhausted = new AtomicLong();
+    private static final AtomicLong leaks = new AtomicLong();
+
+    private static final ReferenceQueue<Object> collected = new ReferenceQueue<Object>();
+    private static final Set<Leak> tracked = Collections.newSetFromMap(new ConcurrentHashMap<Leak, Boolean>());
+    private static final Set<ByteBuffer> outstanding = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+
+    static {
+        int count = MAX_SHIFT - MIN_SHIFT + 1;
+        long share = ((long)ServerConfig.POOL_MAX_MB << 20) / count;
+
+        classes = new SizeClass[count];
+
+        for (int i = 0; i < count; i++)
+            classes[i] = new SizeClass(1 << (MIN_SHIFT + i), share);
+    }
+
+    private BufferPool() {
+    }
+
+    /**
+     * A cleared buffer of at least size bytes. Hand it back with
+     * release() once nothing refers to it any more.
+     */
+    public static ByteBuffer acquire(int size) {
+        if (size > 1 << MAX_SHIFT)
+            return ByteBuffer.allocate(size);
+
+        int index = Math.max(0, 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT);
+        ByteBuffer buf = classes[index].acquire();
+
+        if (buf.isDirect()) {
+            in_use.increment();
+
+            if (ServerConfig.POOL_DEBUG) {
+                synchronized (outstanding) {
+                    outstanding.add(buf);
+                }
+            }
+        }
+
+        return buf;
+    }
+
+    public static void release(ByteBuffer buf) {
+        int capacity = buf.capacity();
+
+        if (!buf.isDirect() || Integer.bitCount(capacity) != 1
+                || capacity < 1 << MIN_SHIFT || capacity > 1 << MAX_SHIFT)
+            return;
+
+        if (ServerConfig.POOL_DEBUG) {
+            synchronized (outstanding) {
+                if (!outstanding.remove(buf))
+                    throw new IllegalStateException("buffer released twice or not from the pool");
+            }
+        }
+
+        in_use.add(-1);
+        classes[Integer.numberOfTrailingZeros(capacity) - MIN_SHIFT].release(buf);
+    }
+
+    /**
+     * Starts watching owner, which holds buf, for being collected while
+     * still live. Returns null unless debugging.
+     */
+    static Leak track(Object owner, ByteBuffer buf) {
+        if (!ServerConfig.POOL_DEBUG)
+            return null;
+
+        reap();
+
+        Leak leak = new Leak(owner, buf);
+        tracked.add(leak);
+
+        return leak;
+    }
+
+    static void untrack(Leak leak) {
+        if (leak != null) {
+            tracked.remove(leak);
+            leak.clear();
+        }
+    }
+
+    private static void reap() {
+        Leak leak;
+
+        while ((leak = (Leak)collected.poll()) != null) {
+            if (tracked.remove(leak)) {
+                leaks.incrementAndGet();
+
+                System.err.println("LEAK: frame collected without release(), allocated at:");
+                leak.origin.printStackTrace();
+
+                release(leak.buf);
+            }
+        }
+    }
+
+    public static long slab_bytes() {
+        return slab_bytes.get();
+    }
+
+    public static long in_use() {
+        return in_use.get();
+    }
+
+    public static long exhausted() {
+        return exhausted.get();
+    }
+
+    public static long leaks() {
+        return leaks.get();
+    }
+
+    static class Leak extends WeakReference<Object> {
+        final ByteBuffer buf;
+        final Throwable origin;
+
+        Leak(Object owner, ByteBuffer buf) {
+            super(owner, collected);
+            this.buf = buf;
+            this.origin = new Throwable("allocated here");
+        }
+    }
+
+    /**
+     * Free list of one buffer size. The bounded array queue holds every
+     * buffer the class may ever own, so recycling never allocates.
+     */
+    private static class SizeClass {
+        private final int size;
+        private final int per_slab;
+        private final int max_buffers;
+        private final ArrayBlockingQueue<ByteBuffer> free;
+        private int allocated;
+
+        SizeClass(int size, long share) {
+            this.size = size;
+            this.per_slab = Math.max(1, SLAB_SIZE / size);
+            this.max_buffers = (int)Math.max(per_slab, share / size / per_slab * per_slab);
+
+            free = new ArrayBlockingQueue<ByteBuffer>(max_buffers);
+        }
+
+        ByteBuffer acquire() {
+            ByteBuffer buf = free.poll();
+
+            if (buf == null)
+                buf = grow();
+
+            buf.clear();
+
+            return buf;
+        }
+
+        void release(ByteBuffer buf) {
+            free.offer(buf);
+        }
+
+        private synchronized ByteBuffer grow() {
+            ByteBuffer buf = free.poll();
+
+            if (buf != null)
+                return buf;
+
+            if (allocated + per_slab > max_buffers) {
+                exhausted.incrementAndGet();
+                return ByteBuffer.allocate(size);
+            }
+
+            ByteBuffer slab = ByteBuffer.allocateDirect(per_slab * size);
+
+            allocated += per_slab;
+            slab_bytes.addAndGet(slab.capacity());
+
+            for (int i = 1; i < per_slab; i++) {
+                slab.limit((i + 1) * size).position(i * size);
+                free.offer(slab.slice());
+            }
+
+            slab.limit(size).position(0);
+
+            return slab.slice();
+        }
+    }
+}
@@ -0,0 +1,187 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * ChannelIndex
+ *
+ * Channel membership kept in both directions: channel -> members for
+ * fan-out, member -> channels for cleanup when a member leaves the
+ * server. Channels exist while they have at least one member. Channel
+ * names are case-insensitive and stored lower-cased.
+ */
+public class ChannelIndex<C> {
+    public static final int MAX_NAME_LENGTH = 50;
+
+    private final ConcurrentHashMap<String, Set<C>> members;
+    private final ConcurrentHashMap<C, Set<String>> joined;
+
+    public ChannelIndex() {
+        members = new ConcurrentHashMap<String, Set<C>>();
+        joined = new ConcurrentHashMap<C, Set<String>>();
+    }
+
+    /**
+     * Returns the canonical form of a channel name, or null if name is not
+     * a valid channel ("#" followed by up to MAX_NAME_LENGTH - 1 characters
+     * with no whitespace or commas).
+     */
+    public static String normalize(String name) {
+        if (name == null)
+            return null;
+
+        name = name.trim();
+
+        if (name.length() < 2 || name.length() > MAX_NAME_LENGTH || name.charAt(0) != '#')
+            return null;
+
+        for (int i = 1; i < name.length(); i++) {
+            char ch = name.charAt(i);
+
+            if (Character.isWhitespace(ch) || ch == ',' || Character.isISOControl(ch))
+                return null;
+        }
+
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Adds c to channel, creating it if needed. Returns false if c was
+     * already a member. The index cannot tell a member that has left for
+     * good from a new one, so a caller whose part_all() may race with
+     * this checks afterwards that c is still live, and calls part_all()
+     * again if it is not.
+     */
+    public boolean join(String channel, C c) {
+        while (true) {
+            Set<C> set = members.get(channel);
+
+            if (set == null) {
+                Set<C> created = new_set();
+                set = members.putIfAbsent(channel, created);
+
+                if (set == null)
+                    set = created;
+            }
+
+            boolean added;
+
+            synchronized (set) {
+                // a concurrent part() may have retired this set as empty
+                if (members.get(channel) != set)
+                    continue;
+
+                added = set.add(c);
+            }
+
+            if (added)
+                channels_of_member(c).add(channel);
+
+            return added;
+        }
+    }
+
+    /**
+     * Removes c from channel. Returns false if c was not a member.
+     */
+    public boolean part(String channel, C c) {
+        if (!leave(channel, c))
+            return false;
+
+        Set<String> channels = joined.get(c);
+
+        if (channels != null)
+            channels.remove(channel);
+
+        return true;
+    }
+
+    /**
+     * Removes c from every channel it is in and returns those channels.
+     */
+    public Set<String> part_all(C c) {
+        Set<String> channels = joined.remove(c);
+
+        if (channels == null)
+            return Collections.emptySet();
+
+        for (String channel : channels)
+            leave(channel, c);
+
+        return channels;
+    }
+
+    /**
+     * Takes c out of channel's set, and retires the set if that emptied
+     * it. Both happen under the set's monitor, as does join()'s add, so
+     * a join can never land in a set that is being retired.
+     */
+    private boolean leave(String channel, C c) {
+        Set<C> set = members.get(channel);
+
+        if (set == null)
+            return false;
+
+        boolean retired = false;
+
+        synchronized (set) {
+            if (!set.remove(c))
+                return false;
+
+            if (set.isEmpty())
+                retired = members.remove(channel, set);
+        }
+
+        if (retired)
+            retired(channel);
+
+        return true;
+    }
+
+    /**
+     * Called once a channel's last member has left and the channel is
+     * gone, for a subclass that keeps state of its own per channel. A
+     * join may already have brought the channel back by then.
+     */
+    protected void retired(String channel) {
+    }
+
+    public Collection<C> members(String channel) {
+        Set<C> set = members.get(channel);
+
+        return set == null ? Collections.<C>emptySet() : set;
+    }
+
+    public boolean is_member(String channel, C c) {
+        Set<C> set = members.get(channel);
+
+        return set != null && set.contains(c);
+    }
+
+    public Set<String> channels(C c) {
+        Set<String> channels = joined.get(c);
+
+        return channels == null ? Collections.<String>emptySet() : channels;
+    }
+
+    public Set<String> names() {
+        return members.keySet();
+    }
+
+    private Set<String> channels_of_member(C c) {
+        Set<String> channels = joined.get(c);
+
+        if (channels == null) {
+            Set<String> created = new_set();
+            channels = joined.putIfAbsent(c, created);
+
+            if (channels == null)
+                channels = created;
+        }
+
+        return channels;
+    }
+
+    private static <T> Set<T> new_set() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<T, Boolean>());
+    }
+}
@@ -0,0 +1,600 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+/**
+ * ChatClient
+ *
+ * The JedIRC client's networking, on one selector thread of its own, so
+ * a UI such as JediClient never touches a socket. connect(), send() and
+ * disconnect() may be called from any thread and only queue work.
+ *
+ * Outgoing frames wait in a bounded send queue while the connection is
+ * being (re)established and are written once it is up, after the
+ * handshake. A connection that drops without the server saying why is
+ * retried with exponential backoff; one the server closes with a
+ * DISCONNECT frame, or that the user closes, is not. PINGs are answered
+ * here, without bothering the listener.
+ *
+ * A server shutting down gracefully sends a RESUME token instead. The
+ * client then comes back at a random moment within the window the
+ * server asked for, so a restart is not met by every client at once,
+ * and presents the token to get its nick, channels and missed lines
+ * back.
+ *
+ * Compression is offered in the greeting and, once the server agrees,
+ * applies to both directions for the rest of the connection.
+ *
+ * Roster changes are numbered by the server. One that skips a number
+ * means some went missing, typically dropped while this client was
+ * slow to read, so a fresh roster is requested and changes are held
+ * back from the listener until it arrives.
+ */
+public class ChatClient extends Thread {
+    public static final long CONNECT_TIMEOUT_MS = Long.getLong("jedirc.client.connect_timeout_ms", 5000);
+    public static final long MIN_BACKOFF_MS = Long.getLong("jedirc.client.backoff_min_ms", 500);
+    public static final long MAX_BACKOFF_MS = Long.getLong("jedirc.client.backoff_max_ms", 30000);
+    public static final int SEND_QUEUE = Integer.getInteger("jedirc.client.send_queue", 1024);
+
+    /** compression modes offered, best first, comma separated; empty offers none */
+    public static final String COMPRESS = System.getProperty("jedirc.client.compress", "deflate");
+    public static final String COMPRESS_DICT = System.getProperty("jedirc.client.compress.dict");
+    public static final int COMPRESS_MIN_BYTES = Integer.getInteger("jedirc.client.compress.min_bytes", 128);
+
+    private static final int READ_BUFFER_SIZE = 2 * FrameEncoder.MAX_PAYLOAD;
+
+    private final ClientListener listener;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final ArrayBlockingQueue<ByteBuffer> outbound;
+    private final ByteBuffer in;
+    private final Random jitter;
+    private final byte[] dictionary;
+    private final String compress_offer;
+    private volatile boolean stay_alive;
+    private volatile boolean connected;
+
+    // loop thread only
+    private String host;
+    private int port;
+    private String user;
+    private boolean wanted;
+    private int attempt;
+    private SocketChannel sock;
+    private SelectionKey key;
+    private FrameDecoder decoder;
+    private ByteBuffer writing;
+    private long connect_deadline;
+    private long reconnect_at;
+    private boolean reconnecting;
+    private long roster_seq;
+    private String resume_token;
+    private boolean roster_synced;
+    private Compression.Deflate deflate;
+
+    public ChatClient(ClientListener listener) throws IOException {
+        super("jedirc-client");
+        this.listener = listener;
+
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        outbound = new ArrayBlockingQueue<ByteBuffer>(Math.max(1, SEND_QUEUE));
+        in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        jitter = new Random();
+        stay_alive = true;
+
+        List<Compression.Mode> modes = Compression.modes(COMPRESS);
+        byte[] dict = null;
+
+        try {
+            if (!modes.isEmpty())
+                dict = Compression.dictionary(COMPRESS_DICT);
+        } catch (IOException ioe) {
+            System.err.println("compression disabled, no dictionary: " + ioe.getMessage());
+        }
+
+        dictionary = dict;
+        compress_offer = dict == null ? null : Compression.offer(modes, dict);
+
+        setDaemon(true);
+    }
+
+    /**
+     * Connects as user, dropping any current connection first. Frames
+     * queued before this call are discarded; frames sent after it go out
+     * once the new connection is up.
+     */
+    public void connect(final String host, final int port, final String user) {
+        outbound.clear();
+
+        execute(new Runnable() {
+            public void run() {
+                close_socket();
+
+                ChatClient.this.host = host;
+                ChatClient.this.port = port;
+                ChatClient.this.user = user;
+                wanted = true;
+                reconnecting = false;
+                attempt = 0;
+                resume_token = null;
+
+                open();
+            }
+        });
+    }
+
+    /**
+     * Queues a frame for the server. Returns false if it could not be
+     * encoded or the send queue is full; never waits.
+     */
+    public boolean send(Message m) {
+        try {
+            if (!outbound.offer(FrameEncoder.encode(m)))
+                return false;
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return false;
+        }
+
+        selector.wakeup();
+
+        return true;
+    }
+
+    /**
+     * Says goodbye to the server, if connected, and stops reconnecting.
+     */
+    public void disconnect() {
+        execute(new Runnable() {
+            public void run() {
+                wanted = false;
+                reconnecting = false;
+                outbound.clear();
+
+                if (connected) {
+                    // best effort; closing says as much if it does not fit, and
+                    // it must not land in the middle of a half written frame
+                    if (writing == null) {
+                        try {
+                            sock.write(FrameEncoder.encode(new Message(Message.DISCONNECT, "")));
+                        } catch (IOException ioe) {
+                            System.err.println(ioe.getMessage());
+                        }
+                    }
+
+                    close_socket();
+                    listener.on_disconnected("disconnected", -1);
+                } else
+                    close_socket();
+            }
+        });
+    }
+
+    /**
+     * Asks the server for a fresh roster, for a client that has lost
+     * track of it.
+     */
+    public boolean request_roster() {
+        return send(new Message(Message.ROSTER, ""));
+    }
+
+    public boolean is_connected() {
+        return connected;
+    }
+
+    public void shutdown() {
+        stay_alive = false;
+        selector.wakeup();
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+
+        if (Thread.currentThread() != this)
+            selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (stay_alive) {
+            try {
+                select();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                break;
+            }
+
+            Runnable task;
+
+            while ((task = tasks.poll()) != null)
+                task.run();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+                SelectionKey k = it.next();
+                it.remove();
+
+                if (k != key || !k.isValid())
+                    continue;
+
+                if (k.isConnectable())
+                    finish_connect();
+                if (key != null && key.isValid() && key.isReadable())
+                    read();
+            }
+
+            if (connected)
+                write();
+
+            check_deadlines();
+        }
+
+        close_socket();
+
+        try {
+            selector.close();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Blocks until there is I/O, work, or a connect or reconnect deadline
+     * to look after.
+     */
+    private void select() throws IOException {
+        long deadline = 0;
+
+        if (sock != null && !connected)
+            deadline = connect_deadline;
+        else if (reconnecting)
+            deadline = reconnect_at;
+
+        // a half written frame waits for OP_WRITE instead
+        if (!tasks.isEmpty() || (connected && writing == null && !outbound.isEmpty())) {
+            selector.selectNow();
+        } else if (deadline != 0) {
+            long wait = deadline - System.nanoTime();
+
+            if (wait <= 0)
+                selector.selectNow();
+            else
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+        } else
+            selector.select();
+    }
+
+    private void check_deadlines() {
+        long now = System.nanoTime();
+
+        if (sock != null && !connected && now - connect_deadline >= 0)
+            lost("timed out connecting to " + host + ":" + port);
+        else if (reconnecting && now - reconnect_at >= 0) {
+            reconnecting = false;
+            open();
+        }
+    }
+
+    private void open() {
+        attempt++;
+
+        try {
+            sock = SocketChannel.open();
+            sock.configureBlocking(false);
+            sock.socket().setTcpNoDelay(true);
+
+            decoder = new FrameDecoder();
+            writing = greeting();
+            roster_synced = false;
+            roster_seq = -1;
+            in.clear();
+
+            connect_deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+            key = sock.register(selector, SelectionKey.OP_CONNECT);
+
+            if (sock.connect(new InetSocketAddress(host, port)))
+                finish_connect();
+        } catch (IOException | UnresolvedAddressException e) {
+            lost("could not connect to " + host + ":" + port + " (" + e + ")");
+        }
+    }
+
+    /**
+     * The preamble, any compression offer and the USER frame, or RESUME
+     * with a token from the last server, which go out ahead of anything
+     * queued.
+     */
+    private ByteBuffer greeting() throws IOException {
+        ByteBuffer preamble = FrameEncoder.preamble();
+        ByteBuffer offer = compress_offer == null ? ByteBuffer.allocate(0)
+                : FrameEncoder.encode(new Message(Message.COMPRESS, compress_offer));
+        ByteBuffer hello = FrameEncoder.encode(resume_token != null
+                ? new Message(Message.RESUME, resume_token)
+                : new Message(Message.USER, user));
+        ByteBuffer buf = ByteBuffer.allocate(preamble.remaining() + offer.remaining() + hello.remaining());
+
+        buf.put(preamble).put(offer).put(hello);
+        buf.flip();
+
+        return buf;
+    }
+
+    private void finish_connect() {
+        try {
+            if (!sock.finishConnect())
+                return;
+        } catch (IOException ioe) {
+            lost("could not connect to " + host + ":" + port + " (" + ioe.getMessage() + ")");
+            return;
+        }
+
+        connected = true;
+        key.interestOps(SelectionKey.OP_READ);
+        listener.on_connected(host + ":" + port);
+    }
+
+    private void read() {
+        int n;
+
+        try {
+            n = sock.read(in);
+        } catch (IOException ioe) {
+            lost(ioe.getMessage());
+            return;
+        }
+
+        if (n < 0) {
+            lost("connection closed by server");
+            return;
+        }
+
+        in.flip();
+
+        try {
+            Message m;
+
+            while (sock != null && (m = decoder.decode(in)) != null)
+                dispatch(m);
+        } catch (IOException ioe) {
+            lost(ioe.getMessage());
+            return;
+        }
+
+        if (sock != null)
+            in.compact();
+    }
+
+    private void dispatch(Message m) {
+        // the server is talking to us, so the next drop starts backing off afresh
+        attempt = 0;
+
+        switch (m.get_type()) {
+            case Message.MESSAGE:
+                listener.on_message(m.get_message());
+            break;
+
+            case Message.PING:
+                send(new Message(Message.PONG, m.get_message()));
+            break;
+
+            case Message.ROSTER:
+            case Message.USER_JOINED:
+            case Message.USER_LEFT:
+            case Message.USER_RENAMED:
+                roster(m.get_type(), m.get_message());
+            break;
+
+            case Message.RESUME:
+                resume(m.get_message());
+            break;
+
+            case Message.COMPRESS:
+                compress(m.get_message());
+            break;
+
+            case Message.DISCONNECT:
+                // the server turned us away on purpose; retrying would not help
+                wanted = false;
+                lost(m.get_message());
+            break;
+        }
+    }
+
+    private void roster(int type, String payload) {
+        int newline = payload.indexOf('\n');
+        long seq;
+
+        try {
+            seq = Long.parseLong(newline < 0 ? payload : payload.substring(0, newline));
+        } catch (NumberFormatException nfe) {
+            System.err.println("bad roster frame: " + nfe.getMessage());
+            return;
+        }
+
+        String body = newline < 0 ? "" : payload.substring(newline + 1);
+
+        if (type == Message.ROSTER) {
+            // logged in, so any resume token has served its purpose
+            resume_token = null;
+            roster_seq = seq;
+            roster_synced = true;
+            listener.on_roster(split(body));
+            return;
+        }
+
+        if (seq == roster_seq) {
+            // the rest of a snapshot; without its head it is no use
+            if (!roster_synced)
+                return;
+
+            if (type == Message.USER_JOINED)
+                listener.on_users_joined(split(body));
+
+            return;
+        }
+
+        // the login snapshot is still to come, and covers this change
+        if (roster_seq < 0)
+            return;
+
+        if (seq != roster_seq + 1) {
+            roster_synced = false;
+            send(new Message(Message.ROSTER, ""));
+        }
+
+        roster_seq = seq;
+
+        if (type == Message.USER_RENAMED) {
+            String[] names = body.split(" ", 2);
+
+            if (names.length < 2)
+                return;
+
+            // so a reconnect asks for the nick we have now, in sync or not
+            if (names[0].equals(user))
+                user = names[1];
+
+            if (roster_synced)
+                listener.on_user_renamed(names[0], names[1]);
+        } else if (!roster_synced)
+            return;
+        else if (type == Message.USER_JOINED)
+            listener.on_users_joined(split(body));
+        else
+            listener.on_user_left(body);
+    }
+
+    /**
+     * The server is going away and wants us back with this token once
+     * it returns, some time within its spread window.
+     */
+    private void resume(String payload) {
+        int newline = payload.indexOf('\n');
+        String token = newline < 0 ? payload : payload.substring(0, newline);
+        long spread = 0;
+
+        try {
+            if (newline >= 0)
+                spread = Long.parseLong(payload.substring(newline + 1).trim());
+        } catch (NumberFormatException nfe) {
+            System.err.println("bad resume frame: " + nfe.getMessage());
+        }
+
+        resume_token = token.isEmpty() ? null : token;
+        close_socket();
+
+        long retry_ms = spread > 0 ? (long)(jitter.nextDouble() * spread) : MIN_BACKOFF_MS;
+
+        attempt = 0;
+        reconnect_at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retry_ms);
+        reconnecting = true;
+
+        listener.on_disconnected("server restarting", retry_ms);
+    }
+
+    /**
+     * The server's answer to our offer. Its frames may be compressed
+     * from the next one on, and ours are from the next one polled.
+     */
+    private void compress(String answer) {
+        Compression chosen = Compression.accept(answer, dictionary, COMPRESS_MIN_BYTES,
+                Deflater.DEFAULT_COMPRESSION);
+
+        if (chosen == null || deflate != null)
+            return;
+
+        decoder.inflate(chosen);
+        deflate = chosen.deflater();
+    }
+
+    private static String[] split(String nicks) {
+        return nicks.isEmpty() ? new String[0] : nicks.split("\n");
+    }
+
+    /**
+     * Writes the greeting and then queued frames until the socket takes
+     * no more, leaving OP_WRITE set for the rest.
+     */
+    private void write() {
+        try {
+            while (writing != null || (writing = next_frame()) != null) {
+                sock.write(writing);
+
+                if (writing.hasRemaining())
+                    break;
+
+                writing = null;
+            }
+        } catch (IOException ioe) {
+            lost(ioe.getMessage());
+            return;
+        }
+
+        key.interestOps(writing == null ? SelectionKey.OP_READ : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private ByteBuffer next_frame() {
+        ByteBuffer frame = outbound.poll();
+
+        return frame == null || deflate == null ? frame : deflate.apply(frame);
+    }
+
+    /**
+     * Closes the socket and, unless the connection was given up on,
+     * schedules the next attempt after an exponential, jittered backoff.
+     */
+    private void lost(String reason) {
+        close_socket();
+
+        long retry_ms = -1;
+
+        if (wanted) {
+            long cap = MIN_BACKOFF_MS << Math.min(Math.max(0, attempt - 1), 20);
+
+            retry_ms = Math.min(MAX_BACKOFF_MS, cap);
+            retry_ms = retry_ms / 2 + (long)(jitter.nextDouble() * retry_ms / 2);
+            reconnect_at = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retry_ms);
+            reconnecting = true;
+        }
+
+        listener.on_disconnected(reason, retry_ms);
+    }
+
+    private void close_socket() {
+        connected = false;
+        writing = null;
+
+        if (decoder != null)
+            decoder.end();
+
+        if (deflate != null) {
+            deflate.end();
+            deflate = null;
+        }
+
+        if (key != null) {
+            key.cancel();
+            key = null;
+        }
+
+        if (sock != null) {
+            try {
+                sock.close();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
+
+            sock = null;
+        }
+    }
+}
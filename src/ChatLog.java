@@ -0,0 +1,124 @@
+import java.awt.EventQueue;
+import java.awt.event.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.swing.JTextArea;
+import javax.swing.Timer;
+import javax.swing.text.BadLocationException;
+
+/**
+ * ChatLog
+ *
+ * Line-capped model behind a chat JTextArea. Lines may be appended from
+ * any thread; they are collected and rendered at most once per frame
+ * (FRAME_MS) as a single insert, and the oldest lines are trimmed off the
+ * top of the document so it never holds more than max_lines. A ring of
+ * line lengths makes each trim one remove() call regardless of how many
+ * lines it drops.
+ */
+public class ChatLog implements ActionListener {
+    public static final int FRAME_MS = 16;
+    public static final int DEFAULT_MAX_LINES = 5000;
+
+    private final JTextArea view;
+    private final int max_lines;
+    private final ConcurrentLinkedQueue<String> incoming;
+    private final AtomicInteger pending;
+    private final AtomicBoolean scheduled;
+    private final Timer timer;
+    private final Runnable arm;
+
+    // document line lengths, oldest at head (EDT only)
+    private final int[] lengths;
+    private int head, count;
+
+    public ChatLog(JTextArea view) {
+        this(view, DEFAULT_MAX_LINES);
+    }
+
+    public ChatLog(JTextArea view, int max_lines) {
+        this.view = view;
+        this.max_lines = max_lines;
+
+        incoming = new ConcurrentLinkedQueue<String>();
+        pending = new AtomicInteger();
+        scheduled = new AtomicBoolean();
+        lengths = new int[max_lines];
+
+        timer = new Timer(FRAME_MS, this);
+        timer.setRepeats(false);
+        arm = new Runnable() {
+            public void run() {
+                timer.restart();
+            }
+        };
+
+        // the line lengths only hold if nothing else edits the document
+        view.setEditable(false);
+    }
+
+    public void append(String line) {
+        incoming.add(line);
+
+        // lines older than the newest max_lines would be trimmed unseen
+        if (pending.incrementAndGet() > max_lines && incoming.poll() != null)
+            pending.decrementAndGet();
+
+        // Timer is only reliable when driven from the EDT
+        if (scheduled.compareAndSet(false, true))
+            EventQueue.invokeLater(arm);
+    }
+
+    public void actionPerformed(ActionEvent evt) {
+        scheduled.set(false);
+
+        List<String> batch = new ArrayList<String>();
+        String line;
+
+        while ((line = incoming.poll()) != null) {
+            pending.decrementAndGet();
+            batch.add(line);
+        }
+
+        if (batch.isEmpty())
+            return;
+
+        StringBuilder text = new StringBuilder();
+        int cut = 0;
+
+        for (int i = Math.max(0, batch.size() - max_lines); i < batch.size(); i++) {
+            line = batch.get(i);
+            text.append(line).append('\n');
+
+            if (count == max_lines)
+                cut += pop_length();
+
+            push_length(line.length() + 1);
+        }
+
+        view.append(text.toString());
+
+        try {
+            if (cut > 0)
+                view.getDocument().remove(0, cut);
+        } catch (BadLocationException ble) {
+            System.err.println(ble.getMessage());
+        }
+    }
+
+    private void push_length(int length) {
+        lengths[(head + count) % lengths.length] = length;
+        count++;
+    }
+
+    private int pop_length() {
+        int length = lengths[head];
+
+        head = (head + 1) % lengths.length;
+        count--;
+
+        return length;
+    }
+}
@@ -0,0 +1,1297 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ChatServer
+ *
+ * The JedIRC server engine. Loads no AWT or Swing classes, so it runs on
+ * headless hosts; a UI such as JediServer attaches as a ServerListener.
+ */
+public class ChatServer {
+    private static final int MAX_NICK = 32;
+    private static final int ROSTER_CHUNK = 16 * 1024;
+
+    private ServerSocketChannel server_sock;
+    private volatile Selector acceptor;
+    private EventLoop[] loops;
+    private ThreadPoolExecutor handshakes;
+    private final AtomicInteger next_loop;
+    private ClientRegistry<Connection> clients;
+    private ChannelIndex<Connection> channels;
+    private volatile boolean stay_alive;
+    private volatile boolean draining;
+    private ResumeToken.Signer signer;
+    private List<Compression.Mode> compress_modes;
+    private Compression.Shared[] compress_shared;
+    private byte[] compress_dictionary;
+    private ServerConfig.IoMode mode;
+    private int port;
+    private CopyOnWriteArrayList<ServerListener> listeners;
+    private Journal journal;
+    private ConcurrentHashMap<String, HistoryRing> history;
+    private ServerMetrics metrics;
+    private TimingWheel timers;
+    private RateLimiter limiter;
+    private Cluster cluster;
+    private final Object roster_lock = new Object();
+    private long roster_seq;
+
+    public ChatServer(int port) {
+        clients = new ClientRegistry<Connection>();
+        channels = new ChannelIndex<Connection>() {
+            @Override
+            protected void retired(String channel) {
+                forget(channel);
+            }
+        };
+        listeners = new CopyOnWriteArrayList<ServerListener>();
+        history = new ConcurrentHashMap<String, HistoryRing>();
+        limiter = new RateLimiter();
+        metrics = new ServerMetrics(clients, limiter);
+        next_loop = new AtomicInteger();
+        timers = new TimingWheel("jedirc-timer", ServerConfig.TIMER_TICK_MS, ServerConfig.TIMER_SLOTS);
+        this.port = port;
+    }
+
+    public static void main(String[] args) {
+        int _port = 31337;
+
+        if (args.length == 1) {
+            try {
+                _port = Integer.parseInt(args[0]);
+            } catch (Exception e) {
+                System.err.println("invalid port number! using default...");
+                _port = 31337;
+            }
+
+            ChatServer server = new ChatServer(_port);
+            server.drain_on_exit();
+            server.add_listener(new ServerListener() {
+                public void on_message(String message) {
+                    System.out.println(message);
+                }
+
+                public void on_user_joined(long seq, int id, String user) {
+                }
+
+                public void on_user_left(long seq, int id, String user) {
+                }
+
+                public void on_user_renamed(long seq, int id, String old, String user) {
+                }
+            });
+
+            server.start();
+        } else
+            System.err.println("usage:\tjava ChatServer port");
+    }
+
+    public void add_listener(ServerListener listener) {
+        listeners.add(listener);
+    }
+
+    public void remove_listener(ServerListener listener) {
+        listeners.remove(listener);
+    }
+
+    public void start() {
+        stay_alive = true;
+        mode = ServerConfig.IO_MODE;
+
+        if (mode == ServerConfig.IoMode.VIRTUAL && !Threads.virtual_supported()) {
+            System.err.println("virtual threads not supported by this runtime, using platform threads");
+            mode = ServerConfig.IoMode.THREADS;
+        }
+
+        try {
+            open_journal();
+            signer = ResumeToken.Signer.create(ServerConfig.RESUME_SECRET, ServerConfig.JOURNAL_DIR,
+                    ServerConfig.RESUME_TTL_MS);
+            open_compression();
+
+            server_sock = ServerSocketChannel.open();
+            server_sock.socket().setReuseAddress(true);
+            server_sock.socket().bind(new InetSocketAddress(port), ServerConfig.BACKLOG);
+
+            metrics.start(port);
+            timers.start();
+            sweep_peers();
+            open_cluster();
+            show_message("listening for connections on " + port + " (" + mode.name().toLowerCase() + ")");
+
+            if (mode == ServerConfig.IoMode.NIO)
+                accept_selected();
+            else
+                accept_blocking();
+        } catch (IOException ioe) {
+            if (stay_alive)
+                System.err.println(ioe.getMessage());
+        }
+
+        disconnect();
+    }
+
+    /**
+     * Stops accepting and disconnects everyone; start() returns once the
+     * accept loop notices.
+     */
+    public void stop() {
+        stay_alive = false;
+
+        if (acceptor != null) {
+            acceptor.wakeup();
+        } else if (server_sock != null) {
+            try {
+                server_sock.close();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Shuts down gracefully: refuses new connections, stops queueing
+     * lines to each user and sends it a RESUME frame instead, then gives
+     * the outbound queues until the deadline to reach the clients before
+     * stop() closes whatever is left. Users leave silently, rather than
+     * each one's departure being fanned out to all the others.
+     */
+    public void drain(long deadline_ms) {
+        if (!stay_alive || draining)
+            return;
+
+        draining = true;
+        show_message("draining " + clients.size() + " user(s)");
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadline_ms);
+
+        // users logging in meanwhile are handed off by login()
+        for (Connection c : clients.snapshot())
+            hand_off(c);
+
+        while (clients.size() > 0 && System.nanoTime() - deadline < 0) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ie) {
+                break;
+            }
+        }
+
+        if (clients.size() > 0)
+            show_message(clients.size() + " user(s) still draining at the deadline");
+
+        stop();
+    }
+
+    /**
+     * Drains when the JVM is asked to exit, e.g. on SIGTERM.
+     */
+    public void drain_on_exit() {
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+            public void run() {
+                drain(ServerConfig.DRAIN_MS);
+            }
+        }, "jedirc-drain"));
+    }
+
+    /**
+     * Sends c away with a resume token for where it is now. Sealed
+     * first, so every line journaled from then on is one c has not
+     * been sent.
+     */
+    private void hand_off(Connection c) {
+        c.sealed = true;
+
+        String token = "";
+
+        if (c.user != null && signer != null) {
+            long seq = journal != null ? journal.next_seq() : -1;
+
+            token = signer.issue(c.user, seq, channels.channels(c));
+        }
+
+        try {
+            c.finish(new Message(Message.RESUME, token + "\n" + ServerConfig.RESUME_SPREAD_MS));
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            c.close();
+        }
+    }
+
+    private void accept_selected() throws IOException {
+        start_loops();
+        start_handshakes();
+
+        acceptor = Selector.open();
+        server_sock.configureBlocking(false);
+        server_sock.register(acceptor, SelectionKey.OP_ACCEPT);
+
+        while (stay_alive) {
+            acceptor.select();
+            acceptor.selectedKeys().clear();
+
+            SocketChannel sock;
+
+            while (stay_alive && (sock = server_sock.accept()) != null)
+                accept(sock);
+        }
+    }
+
+    /**
+     * THREADS and VIRTUAL modes: a blocking accept, then a reader and a
+     * writer thread per connection.
+     */
+    private void accept_blocking() throws IOException {
+        while (stay_alive) {
+            SocketChannel sock = server_sock.accept();
+
+            if (!stay_alive) {
+                sock.close();
+                break;
+            }
+
+            accept(sock);
+        }
+    }
+
+    private void open_journal() throws IOException {
+        if (ServerConfig.JOURNAL_DIR == null)
+            return;
+
+        journal = new Journal(new File(ServerConfig.JOURNAL_DIR),
+                ServerConfig.JOURNAL_SEGMENT_MB << 20, ServerConfig.JOURNAL_SYNC_MS,
+                ServerConfig.JOURNAL_RETAIN_SEGMENTS);
+        journal.open();
+
+        show_message("journaling to " + ServerConfig.JOURNAL_DIR + " from seq " + journal.next_seq());
+    }
+
+    /**
+     * Loads the compression dictionary; a server that cannot read it
+     * runs without compression rather than not at all.
+     */
+    private void open_compression() {
+        try {
+            compress_dictionary = Compression.dictionary(ServerConfig.COMPRESS_DICT);
+        } catch (IOException ioe) {
+            System.err.println("compression disabled, no dictionary: " + ioe.getMessage());
+            return;
+        }
+
+        compress_modes = Compression.modes(ServerConfig.COMPRESS);
+        compress_shared = Compression.shared(compress_dictionary,
+                ServerConfig.COMPRESS_MIN_BYTES, ServerConfig.COMPRESS_LEVEL);
+    }
+
+    private void open_cluster() throws IOException {
+        if (ServerConfig.CLUSTER_PORT <= 0)
+            return;
+
+        cluster = new Cluster(this, ServerConfig.CLUSTER_PORT);
+        cluster.start();
+    }
+
+    /**
+     * The cluster this server is a node of, or null if it runs alone.
+     */
+    public Cluster cluster() {
+        return cluster;
+    }
+
+    /**
+     * The message journal, or null if journaling is off.
+     */
+    public Journal journal() {
+        return journal;
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    public RateLimiter limiter() {
+        return limiter;
+    }
+
+    TimingWheel timers() {
+        return timers;
+    }
+
+    private void start_loops() throws IOException {
+        loops = new EventLoop[Math.max(1, ServerConfig.SELECTORS)];
+
+        for (int i = 0; i < loops.length; ++i) {
+            loops[i] = new EventLoop(i);
+            loops[i].start();
+        }
+    }
+
+    /**
+     * NIO mode: the workers logins are handed to, so the event loops
+     * (and through them the accept thread) only ever do socket work.
+     * Blocking modes log in on each connection's own reader thread.
+     */
+    private void start_handshakes() {
+        final AtomicInteger n = new AtomicInteger();
+
+        handshakes = new ThreadPoolExecutor(ServerConfig.HANDSHAKE_THREADS, ServerConfig.HANDSHAKE_THREADS,
+                0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, ServerConfig.HANDSHAKE_QUEUE)),
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "jedirc-handshake-" + n.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * Queues a login for a handshake worker. Returns false if there is
+     * no room, in which case the caller runs it itself.
+     */
+    boolean handshake(Runnable login) {
+        if (handshakes == null)
+            return false;
+
+        try {
+            handshakes.execute(login);
+            return true;
+        } catch (RejectedExecutionException ree) {
+            return false;
+        }
+    }
+
+    /**
+     * Runs a freshly accepted socket past the accept rate limits. One held
+     * back by a DELAY limit is opened later from the timer thread.
+     */
+    private void accept(final SocketChannel sock) {
+        final InetAddress addr = sock.socket().getInetAddress();
+        final long accepted_at = System.nanoTime();
+        long verdict = limiter.admit_accept(addr);
+
+        if (verdict == 0) {
+            open(sock, addr, accepted_at);
+        } else if (verdict > 0) {
+            timers.schedule(new Runnable() {
+                public void run() {
+                    open(sock, addr, accepted_at);
+                }
+            }, Math.max(1, TimeUnit.NANOSECONDS.toMillis(verdict)));
+        } else {
+            refuse(sock, verdict == RateLimiter.DISCONNECTED);
+        }
+    }
+
+    private void open(SocketChannel sock, InetAddress addr, long accepted_at) {
+        if (!stay_alive || draining) {
+            refuse(sock, false);
+            return;
+        }
+
+        try {
+            sock.configureBlocking(mode != ServerConfig.IoMode.NIO);
+            sock.socket().setTcpNoDelay(ServerConfig.TCP_NODELAY);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            refuse(sock, false);
+            return;
+        }
+
+        metrics.accepted();
+
+        if (mode == ServerConfig.IoMode.NIO) {
+            EventLoop loop = loops[(next_loop.getAndIncrement() & Integer.MAX_VALUE) % loops.length];
+            NioConnection nc = new NioConnection(this, sock, clients.next_id(), loop);
+
+            nc.accepted_at = accepted_at;
+            limiter.attach(nc, addr);
+            watch_handshake(nc);
+            loop.register(nc);
+        } else {
+            ThreadConnection tc = new ThreadConnection(this, sock, clients.next_id(),
+                    mode == ServerConfig.IoMode.VIRTUAL);
+
+            tc.accepted_at = accepted_at;
+            limiter.attach(tc, addr);
+            watch_handshake(tc);
+            tc.start();
+        }
+    }
+
+    /**
+     * Closes a socket that never became a connection, first telling the
+     * peer it was rate limited if asked to. The socket is fresh, so the
+     * few bytes go straight into its empty send buffer.
+     */
+    private void refuse(SocketChannel sock, boolean tell) {
+        try {
+            if (tell) {
+                sock.write(new ByteBuffer[] {
+                    FrameEncoder.preamble(),
+                    FrameEncoder.encode(new Message(Message.DISCONNECT, "[RATE_LIMITED]"))
+                });
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+
+        try {
+            sock.close();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * Every minute, forgets remote addresses the limiter no longer needs.
+     */
+    private void sweep_peers() {
+        if (!limiter.per_address())
+            return;
+
+        timers.schedule(new Runnable() {
+            public void run() {
+                limiter.sweep();
+                sweep_peers();
+            }
+        }, TimeUnit.MINUTES.toMillis(1));
+    }
+
+    private void disconnect() {
+        try {
+            if (server_sock != null)
+                server_sock.close();
+            if (acceptor != null)
+                acceptor.close();
+
+            disconnect_all();
+
+            if (loops != null) {
+                for (EventLoop loop : loops)
+                    loop.shutdown();
+            }
+
+            if (handshakes != null)
+                handshakes.shutdownNow();
+
+            if (cluster != null)
+                cluster.stop();
+
+            if (journal != null)
+                journal.close();
+
+            if (compress_shared != null) {
+                for (Compression.Shared shared : compress_shared)
+                    shared.end_all();
+            }
+
+            metrics.stop();
+            timers.stop();
+        } catch (Exception e) {
+            System.err.println(e.getMessage());
+        }
+    }
+
+    /**
+     * Gives a new connection until the handshake timeout to send USER,
+     * then leaves it to idle detection.
+     */
+    private void watch_handshake(final Connection c) {
+        if (ServerConfig.HANDSHAKE_TIMEOUT_MS <= 0) {
+            watch(c, ServerConfig.IDLE_MS);
+            return;
+        }
+
+        c.idle = timers.schedule(new Runnable() {
+            public void run() {
+                if (!c.sock.isOpen())
+                    return;
+
+                if (c.user != null) {
+                    watch(c, ServerConfig.IDLE_MS);
+                    return;
+                }
+
+                metrics.handshake_timed_out();
+                show_message("connection " + c.id + " timed out in handshake");
+                c.drop();
+            }
+        }, ServerConfig.HANDSHAKE_TIMEOUT_MS);
+    }
+
+    private void watch(final Connection c, long delay_ms) {
+        if (ServerConfig.IDLE_MS <= 0)
+            return;
+
+        c.idle = timers.schedule(new Runnable() {
+            public void run() {
+                check_idle(c);
+            }
+        }, delay_ms);
+    }
+
+    /**
+     * Runs on the timer thread when a connection's idle deadline comes
+     * up. Reads do not touch the wheel; a connection that has been heard
+     * from since is just rescheduled for the rest of its interval. One
+     * that has gone quiet is pinged, and dropped if it stays quiet.
+     */
+    private void check_idle(Connection c) {
+        if (!c.sock.isOpen())
+            return;
+
+        long quiet = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - c.last_read);
+
+        if (quiet < ServerConfig.IDLE_MS) {
+            c.pinged = false;
+            watch(c, ServerConfig.IDLE_MS - quiet);
+        } else if (c.user != null && !c.pinged) {
+            c.pinged = true;
+
+            if (send(c, Message.PING, Long.toString(System.currentTimeMillis())))
+                watch(c, ServerConfig.PONG_TIMEOUT_MS);
+        } else {
+            show_message((c.user == null ? "connection " + c.id : c.user) + " timed out");
+            c.drop();
+        }
+    }
+
+    private boolean send(Connection c, int type, String payload) {
+        try {
+            return c.send_frame(FrameEncoder.encode_shared(new Message(type, payload)));
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return false;
+        }
+    }
+
+    public void disconnect_all() {
+        for (Connection c : clients.snapshot()) {
+            c.close();
+            unregister(c);
+        }
+    }
+
+    public List<String> users() {
+        List<String> users = new ArrayList<String>(clients.size());
+
+        for (Connection c : clients.snapshot())
+            users.add(c.user);
+
+        return users;
+    }
+
+    public int user_count() {
+        return clients.size();
+    }
+
+    void show_message(String message) {
+        for (ServerListener listener : listeners)
+            listener.on_message(message);
+    }
+
+    private void broadcast(String message) {
+        deliver(message);
+
+        if (cluster != null)
+            cluster.relay(null, message);
+    }
+
+    private void broadcast(String channel, String message) {
+        deliver(channel, message);
+
+        if (cluster != null)
+            cluster.relay(channel, message);
+    }
+
+    /**
+     * Sends a server-wide line to the users on this node only; lines
+     * from other cluster nodes come in here.
+     */
+    void deliver(String message) {
+        show_message(message);
+        record(message);
+
+        Frame frame = encode(message);
+
+        if (frame != null) {
+            fan_out(frame, clients.snapshot());
+            frame.release();
+        }
+    }
+
+    /**
+     * Sends a channel line to the channel's members on this node only.
+     */
+    void deliver(String channel, String message) {
+        message = "[" + channel + "] " + message;
+
+        show_message(message);
+        record(message);
+
+        Frame frame = encode(message);
+
+        if (frame != null) {
+            remember(channel, frame);
+            fan_out(frame, channels.members(channel));
+            frame.release();
+        }
+    }
+
+    private void record(String message) {
+        if (journal != null)
+            journal.append(message);
+    }
+
+    private static Frame encode(String message) {
+        try {
+            return FrameEncoder.encode_shared(new Message(Message.MESSAGE, message));
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Queues frame on every recipient, each holding its own reference;
+     * the caller keeps the one it passed in.
+     */
+    private void fan_out(Frame frame, Collection<Connection> recipients) {
+        drop_all(queue_all(frame, recipients, true));
+    }
+
+    /**
+     * The queuing half of fan_out(): returns the recipients that could
+     * not take frame, or null, and leaves dropping them to the caller.
+     */
+    private List<Connection> queue_all(Frame frame, Collection<Connection> recipients, boolean may_wait) {
+        long start = System.nanoTime();
+        List<Connection> failed = null;
+
+        for (Connection c : recipients) {
+            if (!c.send_frame(frame.retain(), may_wait)) {
+                if (failed == null)
+                    failed = new ArrayList<Connection>();
+
+                failed.add(c);
+            }
+        }
+
+        metrics.fanned_out(System.nanoTime() - start);
+
+        return failed;
+    }
+
+    // after the fan-out, so their roster changes follow its frame everywhere
+    private void drop_all(List<Connection> failed) {
+        if (failed != null) {
+            for (Connection c : failed)
+                this.remove_user(c.id);
+        }
+    }
+
+    /**
+     * Adds a line to the scrollback of channel, which is kept only while
+     * the channel has members here.
+     */
+    private void remember(String channel, Frame frame) {
+        if (ServerConfig.HISTORY_LINES <= 0)
+            return;
+
+        HistoryRing ring = history.get(channel);
+
+        if (ring == null) {
+            if (!channels.names().contains(channel))
+                return;
+
+            HistoryRing fresh = new HistoryRing(ServerConfig.HISTORY_LINES, ServerConfig.HISTORY_BYTES);
+
+            ring = history.putIfAbsent(channel, fresh);
+
+            if (ring == null) {
+                ring = fresh;
+
+                // retired meanwhile, maybe before forget() could see the ring
+                if (!channels.names().contains(channel)) {
+                    forget(channel);
+                    return;
+                }
+            }
+        }
+
+        ring.add(frame);
+    }
+
+    private void forget(String channel) {
+        HistoryRing ring = history.remove(channel);
+
+        if (ring != null)
+            ring.close();
+    }
+
+    /**
+     * Sends a joiner the channel's scrollback as one write. A line
+     * broadcast while the join is in progress may arrive twice, but none
+     * can be missed.
+     */
+    private void replay(Connection c, String channel) {
+        HistoryRing ring = history.get(channel);
+        Frame batch = ring == null ? null : ring.replay();
+
+        if (batch != null && !c.send_frame(batch))
+            remove_user(c.id);
+    }
+
+    /**
+     * Protocol entry point for every frame a connection receives, called
+     * on that connection's reading thread.
+     */
+    void handle(final Connection c, Message m) throws IOException {
+        metrics.message_in();
+
+        // PONGs are exempt, or a flooder could get itself timed out instead
+        if (m.get_type() != Message.PONG && !admit(c))
+            return;
+
+        if (c.user == null) {
+            final ResumeToken resume;
+
+            if (m.get_type() == Message.COMPRESS) {
+                negotiate(c, m.get_message());
+                return;
+            }
+
+            if (m.get_type() == Message.USER) {
+                resume = null;
+                c.user = m.get_message();
+            } else if (m.get_type() == Message.RESUME) {
+                ResumeToken token = signer.read(m.get_message());
+
+                if (token == null) {
+                    c.reject("[BAD_TOKEN]");
+                    return;
+                }
+
+                resume = token.valid ? token : null;
+                c.user = token.nick;
+            } else
+                throw new IOException("expected username, got frame type " + m.get_type());
+
+            if (!valid_nick(c.user)) {
+                c.reject("[BAD_NICK]:" + c.user);
+                return;
+            }
+
+            c.handshake(new Runnable() {
+                public void run() {
+                    login(c, resume);
+                }
+            });
+            return;
+        }
+
+        switch (m.get_type()) {
+            case Message.MESSAGE:
+                message(c, m.get_message());
+            break;
+
+            case Message.JOIN:
+                join(c, m.get_message());
+            break;
+
+            case Message.PART:
+                part(c, m.get_message());
+            break;
+
+            case Message.NICK:
+                rename(c, m.get_message().trim());
+            break;
+
+            case Message.ROSTER:
+                send_roster(c);
+            break;
+
+            case Message.PING:
+                send(c, Message.PONG, m.get_message());
+            break;
+
+            case Message.PONG:
+                // the read itself already counted as activity
+            break;
+
+            case Message.DISCONNECT:
+                show_message(c.user + " has been disconnected");
+                c.drop();
+            break;
+        }
+    }
+
+    /**
+     * Answers a client's one COMPRESS offer with the mode picked, or an
+     * empty answer if there is none to agree on.
+     */
+    private void negotiate(Connection c, String offer) throws IOException {
+        if (c.compress_offered)
+            throw new IOException("compression offered twice");
+
+        c.compress_offered = true;
+
+        Compression chosen = compress_shared == null ? null : Compression.choose(offer, compress_modes,
+                compress_dictionary, ServerConfig.COMPRESS_MIN_BYTES, ServerConfig.COMPRESS_LEVEL);
+
+        if (chosen == null) {
+            send(c, Message.COMPRESS, "");
+            return;
+        }
+
+        c.compress(chosen, chosen.deflater(compress_shared),
+                FrameEncoder.encode_shared(new Message(Message.COMPRESS, chosen.answer())));
+    }
+
+    /**
+     * Applies the inbound rate limits to one frame from c, and returns
+     * whether it should be handled.
+     */
+    private boolean admit(Connection c) throws IOException {
+        long verdict = limiter.admit_message(c);
+
+        if (verdict == 0)
+            return true;
+
+        if (verdict > 0) {
+            c.pause_reading(verdict);
+            return true;
+        }
+
+        if (verdict == RateLimiter.DISCONNECTED) {
+            show_message((c.user == null ? "connection " + c.id : c.user) + " exceeded its rate limit");
+            c.reject("[RATE_LIMITED]");
+        }
+
+        return false;
+    }
+
+    /**
+     * Chat lines are addressed as "#channel text"; a line without a
+     * channel goes to the default channel.
+     */
+    private void message(Connection c, String line) {
+        String channel = ServerConfig.DEFAULT_CHANNEL;
+
+        if (line.startsWith("#")) {
+            int space = line.indexOf(' ');
+
+            channel = ChannelIndex.normalize(space < 0 ? line : line.substring(0, space));
+            line = space < 0 ? "" : line.substring(space + 1);
+        }
+
+        if (channel == null || !channels.is_member(channel, c))
+            c.send_message("[NOT_ON_CHANNEL]:" + channel);
+        else
+            broadcast(channel, c.user + ": " + line);
+    }
+
+    private void join(Connection c, String name) {
+        join(c, name, true);
+    }
+
+    private void join(Connection c, String name, boolean scrollback) {
+        String channel = ChannelIndex.normalize(name);
+
+        if (channel == null)
+            c.send_message("[BAD_CHANNEL]:" + name);
+        else if (channels.join(channel, c)) {
+            // unregister() may have parted c from everything meanwhile
+            if (clients.get(c.id) != c) {
+                channels.part_all(c);
+                return;
+            }
+
+            if (scrollback)
+                replay(c, channel);
+
+            broadcast(channel, c.user + " has joined " + channel);
+        }
+    }
+
+    private void part(Connection c, String name) {
+        String channel = ChannelIndex.normalize(name);
+
+        if (channel != null && channels.part(channel, c)) {
+            c.send_message("[" + channel + "] you have left " + channel);
+            broadcast(channel, c.user + " has left " + channel);
+        } else
+            c.send_message("[NOT_ON_CHANNEL]:" + name);
+    }
+
+    /**
+     * Registers a connection that has sent a good USER frame and brings
+     * it up to date: the roster, its arrival, the default channel and
+     * its scrollback. A user resuming with a valid token goes back to
+     * its old channels instead, and with a journal is sent just the
+     * lines it missed rather than scrollback. May run on a handshake
+     * worker.
+     */
+    private void login(Connection c, ResumeToken resume) {
+        if (!c.sock.isOpen())
+            return;
+
+        if (draining) {
+            hand_off(c);
+            return;
+        }
+
+        if (!add_user(c)) {
+            try {
+                c.reject("[NICK_IN_USE]:" + c.user);
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                c.close();
+            }
+
+            return;
+        }
+
+        // dropped while this waited for a worker, before it was registered
+        if (!c.sock.isOpen()) {
+            remove_user(c.id);
+            return;
+        }
+
+        show_message(c.user + " has connected");
+
+        send_roster(c);
+        roster_delta(Message.USER_JOINED, c.user, c, null);
+
+        // c is registered, so lines from here on reach it anyway
+        boolean catch_up = resume != null && journal != null && resume.seq >= 0;
+        long until = catch_up ? journal.next_seq() : 0;
+
+        broadcast("[NEW_USER]:" + c.user);
+
+        if (resume == null) {
+            join(c, ServerConfig.DEFAULT_CHANNEL);
+        } else {
+            for (String channel : resume.channels)
+                join(c, channel, !catch_up);
+
+            if (catch_up)
+                catch_up(c, resume, until);
+        }
+
+        if (c.accepted_at != 0)
+            metrics.handshaken(System.nanoTime() - c.accepted_at);
+    }
+
+    /**
+     * Sends a resumed user the journaled lines from its token's sequence
+     * number up to until: server-wide lines and those of the channels it
+     * was in.
+     */
+    private void catch_up(Connection c, ResumeToken resume, long until) {
+        int sent = 0;
+
+        for (Journal.Entry e : journal.read(resume.seq, ServerConfig.RESUME_LINES)) {
+            if (e.seq >= until)
+                break;
+
+            if (e.text.startsWith("[#")) {
+                int end = e.text.indexOf(']');
+
+                if (end < 0 || !resume.channels.contains(e.text.substring(1, end)))
+                    continue;
+            }
+
+            c.send_message(e.text);
+            sent++;
+        }
+
+        c.send_message("[RESUMED]:" + sent);
+    }
+
+    /**
+     * Nicks travel space and newline separated in roster frames, so
+     * they may not contain either.
+     */
+    private static boolean valid_nick(String nick) {
+        if (nick.isEmpty() || nick.length() > MAX_NICK)
+            return false;
+
+        for (int i = 0; i < nick.length(); i++) {
+            char ch = nick.charAt(i);
+
+            if (Character.isWhitespace(ch) || Character.isISOControl(ch))
+                return false;
+        }
+
+        return true;
+    }
+
+    private void rename(Connection c, String nick) {
+        String old = c.user;
+
+        if (!valid_nick(nick)) {
+            c.send_message("[BAD_NICK]:" + nick);
+            return;
+        }
+
+        if (nick.equals(old))
+            return;
+
+        if (!clients.rename(old, nick, c)) {
+            c.send_message("[NICK_IN_USE]:" + nick);
+            return;
+        }
+
+        if (cluster != null) {
+            // a change of case only: the other nodes must drop the old spelling first
+            if (nick.equalsIgnoreCase(old))
+                cluster.release(old);
+
+            if (!cluster.claim(nick)) {
+                clients.rename(nick, old, c);
+                c.send_message("[NICK_IN_USE]:" + nick);
+                return;
+            }
+
+            if (!nick.equalsIgnoreCase(old))
+                cluster.release(old);
+        }
+
+        c.user = nick;
+
+        roster_delta(Message.USER_RENAMED, old + " " + nick, c, old);
+        broadcast(old + " is now known as " + nick);
+    }
+
+    /**
+     * Sends c everyone on the cluster, in frames of at most ROSTER_CHUNK
+     * characters (well under MAX_PAYLOAD once UTF-8 encoded): a ROSTER
+     * and as many USER_JOINED as the rest takes.
+     *
+     * Snapshots and deltas are queued under roster_lock, so a client
+     * never sees a delta that predates its snapshot after it, and every
+     * frame is headed by the sequence number of the last change in.
+     * Nothing waits on a full queue under the lock, though: a client
+     * that cannot take its frames at once is dropped, after the lock is
+     * released, rather than holding up every login, logout and rename.
+     *
+     * Snapshot frames are pinned, as a client that lost one would never
+     * know to ask again. A client only ever has one snapshot queued; it
+     * asks again if the deltas that follow it still leave a gap.
+     */
+    private void send_roster(Connection c) {
+        if (c.roster_tail != null)
+            return;
+
+        boolean sent = true;
+
+        synchronized (roster_lock) {
+            List<String> nicks = users();
+
+            if (cluster != null)
+                nicks.addAll(cluster.remote_users());
+
+            String seq = roster_seq + "\n";
+            StringBuilder chunk = new StringBuilder(seq);
+            int type = Message.ROSTER;
+
+            for (String nick : nicks) {
+                if (chunk.length() + nick.length() >= ROSTER_CHUNK) {
+                    sent &= send_snapshot(c, type, chunk.toString(), false);
+                    chunk.setLength(0);
+                    chunk.append(seq);
+                    type = Message.USER_JOINED;
+                }
+
+                if (chunk.length() > seq.length())
+                    chunk.append('\n');
+
+                chunk.append(nick);
+            }
+
+            if (type == Message.ROSTER || chunk.length() > seq.length())
+                sent &= send_snapshot(c, type, chunk.toString(), true);
+        }
+
+        if (!sent)
+            remove_user(c.id);
+    }
+
+    private boolean send_snapshot(Connection c, int type, String payload, boolean last) {
+        Frame frame;
+
+        try {
+            frame = FrameEncoder.encode_shared(new Message(type, payload));
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return true;
+        }
+
+        frame.pinned = true;
+
+        // before queuing, or the writer could be past it already
+        if (last)
+            c.roster_tail = frame;
+
+        return c.send_frame(frame, false);
+    }
+
+    /**
+     * This server's own users and the sequence number of the last roster
+     * change they reflect, for a listener that has to start over.
+     */
+    public long roster(List<String> users) {
+        synchronized (roster_lock) {
+            users.addAll(users());
+            return roster_seq;
+        }
+    }
+
+    /**
+     * Numbers one change to the roster and tells every user of it, and
+     * every listener too when it is about c, a user of this server; old
+     * is c's previous nick for a rename. Each change is encoded once and
+     * costs one queued frame per user whatever the size of the roster.
+     *
+     * As in send_roster(), users whose queues are full are dropped once
+     * roster_lock is released; their own USER_LEFT is numbered after
+     * this change rather than nested inside it.
+     */
+    private void roster_delta(int type, String payload, Connection c, String old) {
+        List<Connection> failed = null;
+
+        synchronized (roster_lock) {
+            long seq = ++roster_seq;
+            Frame frame;
+
+            try {
+                frame = FrameEncoder.encode_shared(new Message(type, seq + "\n" + payload));
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                return;
+            }
+
+            if (!draining)
+                failed = queue_all(frame, clients.snapshot(), false);
+
+            frame.release();
+
+            // listeners only post events, and must have them in seq order
+            if (c != null) {
+                for (ServerListener listener : listeners) {
+                    switch (type) {
+                        case Message.USER_JOINED:
+                            listener.on_user_joined(seq, c.id, c.user);
+                        break;
+
+                        case Message.USER_LEFT:
+                            listener.on_user_left(seq, c.id, c.user);
+                        break;
+
+                        case Message.USER_RENAMED:
+                            listener.on_user_renamed(seq, c.id, old, c.user);
+                        break;
+                    }
+                }
+            }
+        }
+
+        drop_all(failed);
+    }
+
+    boolean has_user(String nick) {
+        return clients.find(nick) != null;
+    }
+
+    void remote_joined(String nick) {
+        roster_delta(Message.USER_JOINED, nick, null, null);
+    }
+
+    void remote_left(String nick) {
+        roster_delta(Message.USER_LEFT, nick, null, null);
+    }
+
+    void remote_renamed(String old, String nick) {
+        roster_delta(Message.USER_RENAMED, old + " " + nick, null, null);
+    }
+
+    private boolean add_user(Connection c) {
+        if (!clients.add(c.id, c.user, c))
+            return false;
+
+        if (cluster != null && !cluster.claim(c.user)) {
+            clients.remove(c.id, c.user);
+            return false;
+        }
+
+        return true;
+    }
+
+    public void remove_user(int id) {
+        Connection c = clients.get(id);
+
+        if (c == null)
+            return;
+
+        c.close();
+
+        Set<String> left = unregister(c);
+
+        // a drain sends everyone away; nobody is left to tell
+        if (left != null && !draining) {
+            for (String channel : left)
+                broadcast(channel, c.user + " has quit");
+        }
+    }
+
+    /**
+     * Another cluster node won nick off one of our users at the same
+     * time; ours is told so and disconnected.
+     */
+    void collide(String nick) {
+        Connection c = clients.find(nick);
+
+        if (c == null)
+            return;
+
+        show_message(nick + " lost a nick collision with another node");
+
+        Set<String> left = unregister(c);
+
+        try {
+            c.reject("[NICK_IN_USE]:" + nick);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            c.close();
+        }
+
+        if (left != null) {
+            for (String channel : left)
+                broadcast(channel, nick + " has quit");
+        }
+    }
+
+    /**
+     * Forgets a connection and returns the channels it was in, or null if
+     * someone else already removed it. It leaves the registry before its
+     * channels, which join() relies on to catch a join racing with this.
+     */
+    private Set<String> unregister(Connection c) {
+        if (clients.remove(c.id, c.user) == null)
+            return null;
+
+        if (cluster != null)
+            cluster.release(c.user);
+
+        roster_delta(Message.USER_LEFT, c.user, c, null);
+
+        return channels.part_all(c);
+    }
+}
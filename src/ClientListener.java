@@ -0,0 +1,29 @@
+/**
+ * ClientListener
+ *
+ * Observer of a ChatClient. Callbacks arrive on the client's network
+ * thread and must return quickly; UI listeners hand them off to the EDT
+ * instead of doing work in place.
+ */
+public interface ClientListener {
+    void on_connected(String address);
+
+    void on_message(String message);
+
+    /**
+     * A fresh user list, replacing whatever came before.
+     */
+    void on_roster(String[] users);
+
+    void on_users_joined(String[] users);
+
+    void on_user_left(String user);
+
+    void on_user_renamed(String old, String user);
+
+    /**
+     * The connection is gone; retry_ms is how long until the next
+     * attempt, or -1 if the client will not reconnect by itself.
+     */
+    void on_disconnected(String reason, long retry_ms);
+}
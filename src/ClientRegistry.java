@@ -0,0 +1,92 @@
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ClientRegistry
+ *
+ * Connected clients indexed by connection id and by nickname. Joins,
+ * leaves and lookups are O(1) and safe from any thread; iterating
+ * snapshot() never blocks writers and never throws on concurrent change.
+ * Nicknames are unique ignoring case.
+ */
+public class ClientRegistry<C> {
+    private final AtomicInteger ids;
+    private final ConcurrentHashMap<Integer, C> by_id;
+    private final ConcurrentHashMap<String, C> by_nick;
+
+    public ClientRegistry() {
+        ids = new AtomicInteger();
+        by_id = new ConcurrentHashMap<Integer, C>();
+        by_nick = new ConcurrentHashMap<String, C>();
+    }
+
+    public int next_id() {
+        return ids.getAndIncrement();
+    }
+
+    /**
+     * Registers c under id and nick. Returns false, leaving the registry
+     * unchanged, if the nickname is already taken.
+     */
+    public boolean add(int id, String nick, C c) {
+        if (by_nick.putIfAbsent(key(nick), c) != null)
+            return false;
+
+        by_id.put(id, c);
+
+        return true;
+    }
+
+    /**
+     * Moves c from nick old to nick. Returns false, leaving the registry
+     * unchanged, if the new nickname is already taken by someone else.
+     */
+    public boolean rename(String old, String nick, C c) {
+        String key = key(nick);
+
+        if (key.equals(key(old)))
+            return true;
+
+        if (by_nick.putIfAbsent(key, c) != null)
+            return false;
+
+        by_nick.remove(key(old), c);
+
+        return true;
+    }
+
+    public C remove(int id, String nick) {
+        C c = by_id.remove(id);
+
+        if (c != null)
+            by_nick.remove(key(nick), c);
+
+        return c;
+    }
+
+    public C get(int id) {
+        return by_id.get(id);
+    }
+
+    public C find(String nick) {
+        return by_nick.get(key(nick));
+    }
+
+    public Collection<C> snapshot() {
+        return by_id.values();
+    }
+
+    public int size() {
+        return by_id.size();
+    }
+
+    public void clear() {
+        by_id.clear();
+        by_nick.clear();
+    }
+
+    private static String key(String nick) {
+        return nick.toLowerCase(Locale.ROOT);
+    }
+}
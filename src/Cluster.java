@@ -0,0 +1,474 @@
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cluster
+ *
+ * Joins several ChatServer processes into one chat. Every node dials
+ * every other node listed in jedirc.cluster.peers and sends its own
+ * events down that link; what the others say arrives on the links they
+ * dial in. Links use the client frame format with frame types of their
+ * own, and a broadcast is encoded once and queued once per node, however
+ * many users that node has.
+ *
+ * Nicknames are registered cluster-wide optimistically: a node claims a
+ * nick as soon as one of its users has it and tells the others. If two
+ * nodes claim the same nick at once, the node whose name sorts first
+ * keeps it and the other disconnects its user, as IRC servers do on a
+ * nick collision. When a node's link goes down its nicks are forgotten
+ * until it dials in again and claims them afresh.
+ *
+ * Links are not authenticated, so the cluster port belongs on a trusted
+ * network.
+ */
+public class Cluster {
+    static final int HELLO = 16, CLAIM = 17, RELEASE = 18, LINE = 19, CHANNEL_LINE = 20;
+
+    private static final int CONNECT_TIMEOUT_MS = 2000;
+    private static final long MIN_BACKOFF_MS = 250;
+    private static final long MAX_BACKOFF_MS = 5000;
+
+    private final ChatServer server;
+    private final int port;
+    private final List<Link> links;
+    private final ConcurrentHashMap<String, Claim> nicks;
+    private final ConcurrentHashMap<String, Socket> nodes;
+    private String name;
+    private ServerSocket listener;
+    private volatile boolean running;
+
+    public Cluster(ChatServer server, int port) {
+        this.server = server;
+        this.port = port;
+
+        links = new ArrayList<Link>();
+        nicks = new ConcurrentHashMap<String, Claim>();
+        nodes = new ConcurrentHashMap<String, Socket>();
+    }
+
+    /**
+     * Listens for other nodes and starts dialing the configured peers,
+     * skipping any that turn out to be this node.
+     */
+    public void start() throws IOException {
+        name = ServerConfig.CLUSTER_NODE != null ? ServerConfig.CLUSTER_NODE : local_host() + ":" + port;
+        running = true;
+
+        listener = new ServerSocket();
+        listener.setReuseAddress(true);
+        listener.bind(new InetSocketAddress(port));
+
+        for (String peer : ServerConfig.CLUSTER_PEERS.split(",")) {
+            peer = peer.trim();
+
+            int colon = peer.lastIndexOf(':');
+
+            if (colon <= 0)
+                continue;
+
+            String host = peer.substring(0, colon);
+            int peer_port = Integer.parseInt(peer.substring(colon + 1));
+
+            if (peer_port == port && is_local(host))
+                continue;
+
+            links.add(new Link(host, peer_port));
+        }
+
+        Threads.start("jedirc-cluster", new Runnable() {
+            public void run() {
+                accept_loop();
+            }
+        }, false);
+
+        for (Link link : links)
+            Threads.start("jedirc-link-" + link.host + ":" + link.port, link, false);
+
+        server.show_message("cluster node " + name + " on port " + port + ", " + links.size() + " peer(s)");
+    }
+
+    public void stop() {
+        running = false;
+
+        close(listener);
+
+        for (Link link : links)
+            link.stop();
+
+        for (Socket s : nodes.values())
+            close(s);
+    }
+
+    public String name() {
+        return name;
+    }
+
+    /**
+     * The nodes currently linked in.
+     */
+    public Set<String> nodes() {
+        return nodes.keySet();
+    }
+
+    /**
+     * The nicks held by users on other nodes.
+     */
+    public List<String> remote_users() {
+        List<String> users = new ArrayList<String>(nicks.size());
+
+        for (Claim claim : nicks.values())
+            users.add(claim.nick);
+
+        return users;
+    }
+
+    /**
+     * Announces a nick a local user has just registered. Returns false
+     * if another node already holds it.
+     */
+    boolean claim(String nick) {
+        if (nicks.containsKey(key(nick)))
+            return false;
+
+        send(CLAIM, nick);
+
+        return true;
+    }
+
+    void release(String nick) {
+        send(RELEASE, nick);
+    }
+
+    /**
+     * Forwards a broadcast to every other node; channel is null for a
+     * server-wide one.
+     */
+    void relay(String channel, String message) {
+        if (channel == null)
+            send(LINE, message);
+        else
+            send(CHANNEL_LINE, channel + " " + message);
+    }
+
+    private void send(int type, String payload) {
+        if (links.isEmpty())
+            return;
+
+        ByteBuffer frame;
+
+        try {
+            frame = FrameEncoder.encode(new Message(type, payload));
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return;
+        }
+
+        for (Link link : links)
+            link.send(frame);
+    }
+
+    private void accept_loop() {
+        while (running) {
+            try {
+                final Socket s = listener.accept();
+
+                s.setTcpNoDelay(true);
+
+                Threads.start("jedirc-node-" + s.getRemoteSocketAddress(), new Runnable() {
+                    public void run() {
+                        serve(s);
+                    }
+                }, false);
+            } catch (IOException ioe) {
+                if (running)
+                    System.err.println(ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads one node's events until its link drops. A node that dials in
+     * again replaces its old link and starts over with a clean slate.
+     */
+    private void serve(Socket s) {
+        String node = null;
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+            FrameDecoder decoder = new FrameDecoder();
+            Message hello = decoder.read(in);
+
+            if (hello.get_type() != HELLO)
+                throw new IOException("expected node hello, got frame type " + hello.get_type());
+
+            node = hello.get_message();
+
+            Socket old = nodes.put(node, s);
+
+            if (old != null)
+                close(old);
+
+            forget(node);
+            server.show_message("node " + node + " joined the cluster");
+
+            while (running)
+                receive(node, decoder.read(in));
+        } catch (IOException ioe) {
+            if (running && !(ioe instanceof EOFException) && !s.isClosed())
+                System.err.println(ioe.getMessage());
+        } finally {
+            close(s);
+
+            if (node != null && nodes.remove(node, s)) {
+                forget(node);
+                server.show_message("node " + node + " left the cluster");
+            }
+        }
+    }
+
+    private void receive(String node, Message m) {
+        String payload = m.get_message();
+
+        switch (m.get_type()) {
+            case CLAIM:
+                claimed(node, payload);
+            break;
+
+            case RELEASE:
+                released(node, payload);
+            break;
+
+            case LINE:
+                server.deliver(payload);
+            break;
+
+            case CHANNEL_LINE:
+                int space = payload.indexOf(' ');
+
+                if (space > 0)
+                    server.deliver(payload.substring(0, space), payload.substring(space + 1));
+            break;
+        }
+    }
+
+    /**
+     * Another node has given nick to one of its users. Of two claims the
+     * one from the node whose name sorts first stands.
+     */
+    private void claimed(String node, String nick) {
+        if (server.has_user(nick)) {
+            // ours stands, and that node will drop its own user
+            if (node.compareTo(name) > 0)
+                return;
+
+            server.collide(nick);
+        }
+
+        String key = key(nick);
+        Claim claim = new Claim(node, nick);
+
+        while (true) {
+            Claim owner = nicks.putIfAbsent(key, claim);
+
+            if (owner == null) {
+                server.remote_joined(nick);
+                break;
+            }
+
+            if (owner.node.equals(node) || owner.node.compareTo(node) < 0)
+                break;
+
+            if (nicks.replace(key, owner, claim)) {
+                server.remote_renamed(owner.nick, nick);
+                break;
+            }
+        }
+    }
+
+    private void released(String node, String nick) {
+        String key = key(nick);
+        Claim owner = nicks.get(key);
+
+        if (owner != null && owner.node.equals(node) && nicks.remove(key, owner))
+            server.remote_left(owner.nick);
+    }
+
+    private void forget(String node) {
+        Iterator<Claim> it = nicks.values().iterator();
+
+        while (it.hasNext()) {
+            Claim claim = it.next();
+
+            if (claim.node.equals(node)) {
+                it.remove();
+                server.remote_left(claim.nick);
+            }
+        }
+    }
+
+    private static final class Claim {
+        final String node;
+        final String nick;
+
+        Claim(String node, String nick) {
+            this.node = node;
+            this.nick = nick;
+        }
+    }
+
+    private static String key(String nick) {
+        return nick.toLowerCase(Locale.ROOT);
+    }
+
+    private static String local_host() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
+    private static boolean is_local(String host) {
+        try {
+            InetAddress addr = InetAddress.getByName(host);
+
+            return addr.isLoopbackAddress() || addr.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(addr) != null;
+        } catch (IOException ioe) {
+            return false;
+        }
+    }
+
+    private static void close(Closeable c) {
+        if (c == null)
+            return;
+
+        try {
+            c.close();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+
+    /**
+     * The link this node dials to one peer. Frames queue while the link
+     * is down and are thrown away when it comes back, since the peer is
+     * then sent this node's nicks from scratch; lines said in between
+     * are not replayed. A queue that fills up starts the link over the
+     * same way, as silently losing a CLAIM or RELEASE would leave the
+     * peer wrong about this node's nicks for good.
+     */
+    private final class Link implements Runnable {
+        final String host;
+        final int port;
+        private final ArrayBlockingQueue<ByteBuffer> queue;
+        private volatile Socket sock;
+        private volatile Thread thread;
+
+        Link(String host, int port) {
+            this.host = host;
+            this.port = port;
+
+            queue = new ArrayBlockingQueue<ByteBuffer>(ServerConfig.CLUSTER_QUEUE);
+        }
+
+        /**
+         * Queues a frame shared with every other link; it is only ever
+         * read through its backing array.
+         */
+        void send(ByteBuffer frame) {
+            if (!queue.offer(frame)) {
+                Socket s = sock;
+
+                if (s != null && !s.isClosed()) {
+                    System.err.println("cluster link to " + host + ":" + port + " fell behind, resyncing");
+                    close(s);
+                }
+            }
+        }
+
+        void stop() {
+            close(sock);
+
+            Thread t = thread;
+
+            if (t != null)
+                t.interrupt();
+        }
+
+        public void run() {
+            thread = Thread.currentThread();
+
+            long backoff = MIN_BACKOFF_MS;
+            boolean was_up = true;
+
+            while (running) {
+                Socket s = new Socket();
+
+                try {
+                    sock = s;
+                    s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                    s.setTcpNoDelay(true);
+
+                    backoff = MIN_BACKOFF_MS;
+                    was_up = true;
+                    talk(s);
+                } catch (IOException ioe) {
+                    if (running && was_up)
+                        System.err.println("cluster link to " + host + ":" + port + ": " + ioe.getMessage());
+
+                    was_up = false;
+                } catch (InterruptedException ie) {
+                    break;
+                } finally {
+                    close(s);
+                }
+
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+
+        /**
+         * Introduces this node, claims all its nicks, then streams queued
+         * frames, flushing whenever the queue runs dry.
+         */
+        private void talk(Socket s) throws IOException, InterruptedException {
+            OutputStream out = new BufferedOutputStream(s.getOutputStream(), ServerConfig.WRITE_BUFFER_SIZE);
+
+            queue.clear();
+
+            FrameEncoder.write_preamble(out);
+            write(out, FrameEncoder.encode(new Message(HELLO, name)));
+
+            for (String nick : server.users())
+                write(out, FrameEncoder.encode(new Message(CLAIM, nick)));
+
+            out.flush();
+
+            while (running) {
+                ByteBuffer frame = queue.poll();
+
+                if (frame == null) {
+                    out.flush();
+                    frame = queue.take();
+                }
+
+                write(out, frame);
+            }
+        }
+
+        private void write(OutputStream out, ByteBuffer frame) throws IOException {
+            out.write(frame.array(), frame.arrayOffset(), frame.limit());
+        }
+    }
+}
@@ -0,0 +1,501 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.*;
+
+/**
+ * Compression
+ *
+ * Optional payload compression, negotiated per connection. A client
+ * lists the modes it can do in a COMPRESS frame, and the server answers
+ * with a COMPRESS frame naming the one it picked, or nothing. Each side
+ * starts compressing once the other has heard: the server with the frame
+ * after its answer, the client once the answer arrives. A compressed
+ * frame has the top bit of its type set, and its payload is raw deflate
+ * data of the UTF-8 payload. Either side may still send any frame raw.
+ *
+ *     deflate          every frame deflated on its own. Two connections
+ *                      with the same dictionary compress a frame to the
+ *                      same bytes, so a broadcast is compressed once per
+ *                      dictionary and the result shared like the frame.
+ *     deflate-stream   one deflate stream per connection and direction,
+ *                      sync flushed after every frame, so later frames
+ *                      refer back to earlier ones (context takeover).
+ *                      Chat compresses far better this way, but every
+ *                      connection holds a deflater and an inflater, and a
+ *                      broadcast is compressed once per recipient.
+ *
+ * Both can start from a preset dictionary of text expected on the wire.
+ * It is a file named by a property on each side, or else a short list of
+ * this protocol's own phrases, and is used only when both sides have the
+ * same one. Payloads under the size threshold stay raw, as do deflate
+ * frames that would not shrink.
+ */
+public class Compression {
+    public enum Mode {
+        DEFLATE("deflate"),
+        DEFLATE_STREAM("deflate-stream");
+
+        final String wire_name;
+
+        Mode(String wire_name) {
+            this.wire_name = wire_name;
+        }
+
+        static Mode named(String name) {
+            for (Mode mode : values()) {
+                if (mode.wire_name.equals(name))
+                    return mode;
+            }
+
+            return null;
+        }
+    }
+
+    static final int COMPRESSED = 0x80;
+
+    /** deflate can grow incompressible data a little */
+    static final int MAX_COMPRESSED = FrameEncoder.MAX_PAYLOAD + (FrameEncoder.MAX_PAYLOAD >> 10) + 64;
+
+    /** common phrases last, where deflate finds them cheapest */
+    private static final String BUILT_IN_DICTIONARY =
+            " http:// https://www. .com the and you that this for with what just lol "
+            + "[BAD_CHANNEL]: [NOT_ON_CHANNEL]: [NICK_IN_USE]: [RESUMED]: "
+            + " is now known as  has left # has quit [NEW_USER]: has joined #jedirc [#jedirc] ";
+
+    public final Mode mode;
+    final byte[] dictionary;
+    final int min_bytes;
+    final int level;
+
+    Compression(Mode mode, byte[] dictionary, int min_bytes, int level) {
+        this.mode = mode;
+        this.dictionary = dictionary;
+        this.min_bytes = min_bytes;
+        this.level = level;
+    }
+
+    /**
+     * The dictionary in file, or the built-in one if file is null.
+     */
+    public static byte[] dictionary(String file) throws IOException {
+        if (file == null)
+            return BUILT_IN_DICTIONARY.getBytes(StandardCharsets.UTF_8);
+
+        return Files.readAllBytes(new File(file).toPath());
+    }
+
+    static String dictionary_id(byte[] dictionary) {
+        Adler32 adler = new Adler32();
+
+        adler.update(dictionary, 0, dictionary.length);
+
+        return Long.toHexString(adler.getValue());
+    }
+
+    /**
+     * A client's COMPRESS offer: the modes in order of preference and
+     * the id of its dictionary.
+     */
+    public static String offer(List<Mode> modes, byte[] dictionary) {
+        StringBuilder sb = new StringBuilder();
+
+        for (Mode mode : modes)
+            sb.append(mode.wire_name).append(' ');
+
+        return sb.append("dict=").append(dictionary_id(dictionary)).toString();
+    }
+
+    /**
+     * Parses a comma separated list of mode names, skipping unknown ones.
+     */
+    public static List<Mode> modes(String names) {
+        List<Mode> modes = new ArrayList<Mode>();
+
+        for (String name : names.split(",")) {
+            Mode mode = Mode.named(name.trim().toLowerCase(Locale.ROOT));
+
+            if (mode != null && !modes.contains(mode))
+                modes.add(mode);
+        }
+
+        return modes;
+    }
+
+    /**
+     * The server's pick from a client's offer: the client's favourite of
+     * the allowed modes, with the dictionary if both sides have the same
+     * one. Returns null if nothing fits.
+     */
+    static Compression choose(String offer, List<Mode> allowed, byte[] dictionary, int min_bytes, int level) {
+        String[] words = offer.trim().split("\\s+");
+        boolean same_dictionary = false;
+
+        for (String word : words) {
+            if (word.equals("dict=" + dictionary_id(dictionary)))
+                same_dictionary = true;
+        }
+
+        for (String word : words) {
+            Mode mode = Mode.named(word);
+
+            if (mode != null && allowed.contains(mode))
+                return new Compression(mode, same_dictionary ? dictionary : null, min_bytes, level);
+        }
+
+        return null;
+    }
+
+    /**
+     * The server's COMPRESS answer for this choice.
+     */
+    String answer() {
+        return dictionary == null ? mode.wire_name : mode.wire_name + " dict=" + dictionary_id(dictionary);
+    }
+
+    /**
+     * What a client makes of the server's answer; null if the server
+     * turned compression down or answered with something unknown.
+     */
+    public static Compression accept(String answer, byte[] dictionary, int min_bytes, int level) {
+        String[] words = answer.trim().split("\\s+");
+        Mode mode = Mode.named(words[0]);
+
+        if (mode == null)
+            return null;
+
+        boolean with_dictionary = words.length > 1 && words[1].equals("dict=" + dictionary_id(dictionary));
+
+        return new Compression(mode, with_dictionary ? dictionary : null, min_bytes, level);
+    }
+
+    /**
+     * A compressor for one connection's outgoing frames: its own stream
+     * for deflate-stream, or for deflate the server wide one for its
+     * dictionary from shared, indexed by Shared.slot.
+     */
+    Deflate deflater(Shared[] shared) {
+        if (mode == Mode.DEFLATE_STREAM)
+            return new Own(this);
+
+        return shared[dictionary == null ? 0 : 1];
+    }
+
+    /**
+     * A compressor of its own, for a client's single connection.
+     */
+    Deflate deflater() {
+        return new Own(this);
+    }
+
+    /**
+     * The shared deflate compressors a server hands out, one per
+     * dictionary context.
+     */
+    static Shared[] shared(byte[] dictionary, int min_bytes, int level) {
+        return new Shared[] {
+            new Shared(new Compression(Mode.DEFLATE, null, min_bytes, level), 0),
+            new Shared(new Compression(Mode.DEFLATE, dictionary, min_bytes, level), 1)
+        };
+    }
+
+    Inflater inflater() {
+        Inflater inflater = new Inflater(true);
+
+        if (mode == Mode.DEFLATE_STREAM && dictionary != null)
+            inflater.setDictionary(dictionary);
+
+        return inflater;
+    }
+
+    /**
+     * Readies inflater, which came from inflater(), for the next
+     * compressed payload: a deflate payload starts afresh.
+     */
+    void next_payload(Inflater inflater) {
+        if (mode == Mode.DEFLATE_STREAM)
+            return;
+
+        inflater.reset();
+
+        if (dictionary != null)
+            inflater.setDictionary(dictionary);
+    }
+
+    /**
+     * Outgoing side. Rewrites a run of encoded frames (one, or a
+     * scrollback batch) with each large enough payload compressed.
+     */
+    abstract static class Deflate {
+        /**
+         * Returns frame re-encoded, or frame itself if nothing in it
+         * compressed, taking over the caller's reference either way.
+         */
+        abstract Frame apply(Frame frame);
+
+        /**
+         * The same for a client's heap buffer frames.
+         */
+        abstract ByteBuffer apply(ByteBuffer frames);
+
+        void end() {
+        }
+    }
+
+    /**
+     * deflate: each payload on its own, so the result is the same for
+     * every connection with these settings and is kept on the Frame for
+     * the next one. Writers on any number of threads share one instance
+     * and borrow engines from a small pool: about as many as can run at
+     * once are kept, and any beyond that are ended when given back, so a
+     * thread per connection does not mean a deflater per connection.
+     */
+    static final class Shared extends Deflate {
+        static final int SLOTS = 2;
+
+        final int slot;
+        private final Compression settings;
+        private final ArrayBlockingQueue<Engine> idle;
+        private volatile boolean ended;
+
+        Shared(Compression settings, int slot) {
+            this.settings = settings;
+            this.slot = slot;
+
+            idle = new ArrayBlockingQueue<Engine>(2 * Runtime.getRuntime().availableProcessors());
+        }
+
+        Frame apply(Frame frame) {
+            Frame shared = frame.variant(this);
+
+            frame.release();
+
+            return shared;
+        }
+
+        ByteBuffer apply(ByteBuffer frames) {
+            Engine engine = borrow();
+
+            try {
+                return engine.apply(frames);
+            } finally {
+                give_back(engine);
+            }
+        }
+
+        /**
+         * Re-encodes frame for Frame.variant(), or returns null if
+         * nothing in it shrank.
+         */
+        Frame encode(Frame frame) {
+            Engine engine = borrow();
+
+            try {
+                return engine.encode(frame);
+            } finally {
+                give_back(engine);
+            }
+        }
+
+        /**
+         * Ends the pooled engines; called once the server has stopped.
+         * Connections share this, so it is not ended with any of them.
+         */
+        void end_all() {
+            ended = true;
+
+            Engine engine;
+
+            while ((engine = idle.poll()) != null)
+                engine.end();
+        }
+
+        private Engine borrow() {
+            Engine engine = idle.poll();
+
+            return engine != null ? engine : new Engine(settings, false);
+        }
+
+        private void give_back(Engine engine) {
+            if (!idle.offer(engine))
+                engine.end();
+            else if (ended)
+                end_all();
+        }
+    }
+
+    /**
+     * One connection's own engine: always for deflate-stream, and for a
+     * client's deflate, which has nobody to share with.
+     */
+    static final class Own extends Deflate {
+        private final Engine engine;
+
+        Own(Compression settings) {
+            engine = new Engine(settings, settings.mode == Mode.DEFLATE_STREAM);
+        }
+
+        Frame apply(Frame frame) {
+            Frame wire = engine.encode(frame);
+
+            if (wire == null)
+                return frame;
+
+            frame.release();
+
+            return wire;
+        }
+
+        ByteBuffer apply(ByteBuffer frames) {
+            return engine.apply(frames);
+        }
+
+        void end() {
+            engine.end();
+        }
+    }
+
+    /**
+     * A deflater and the walk over encoded frames. A stream engine keeps
+     * its history between payloads and sync flushes each; a stateless
+     * one starts every payload afresh from the dictionary.
+     */
+    private static final class Engine {
+        private final Compression settings;
+        private final boolean stream;
+        private final Deflater deflater;
+        private byte[] out;
+
+        Engine(Compression settings, boolean stream) {
+            this.settings = settings;
+            this.stream = stream;
+
+            deflater = new Deflater(settings.level, true);
+            out = new byte[1024];
+
+            if (stream && settings.dictionary != null)
+                deflater.setDictionary(settings.dictionary);
+        }
+
+        Frame encode(Frame frame) {
+            byte[] in = new byte[frame.length()];
+
+            frame.copy_to(0, ByteBuffer.wrap(in), in.length);
+
+            ByteArrayOutputStream wire = compress(in);
+
+            return wire == null ? null : to_frame(wire);
+        }
+
+        ByteBuffer apply(ByteBuffer frames) {
+            byte[] in = new byte[frames.remaining()];
+
+            frames.duplicate().get(in);
+
+            ByteArrayOutputStream wire = compress(in);
+
+            return wire == null ? frames : ByteBuffer.wrap(wire.toByteArray());
+        }
+
+        void end() {
+            deflater.end();
+        }
+
+        /**
+         * Walks the frames in in, compressing payloads of at least the
+         * threshold size. Returns null if every frame stayed raw.
+         */
+        private ByteArrayOutputStream compress(byte[] in) {
+            ByteArrayOutputStream wire = null;
+            ByteBuffer header = ByteBuffer.allocate(1 + FrameEncoder.varint_size(MAX_COMPRESSED));
+            int pos = 0;
+
+            while (pos < in.length) {
+                int start = pos;
+                int type = in[pos++] & 0xff;
+                int length = 0;
+
+                for (int shift = 0; ; shift += 7) {
+                    int b = in[pos++];
+
+                    length |= (b & 0x7f) << shift;
+
+                    if ((b & 0x80) == 0)
+                        break;
+                }
+
+                int n = length < settings.min_bytes || (type & COMPRESSED) != 0 ? -1 : deflate(in, pos, length);
+
+                if (n >= 0) {
+                    if (wire == null) {
+                        wire = new ByteArrayOutputStream(in.length);
+                        wire.write(in, 0, start);
+                    }
+
+                    header.clear();
+                    header.put((byte)(type | COMPRESSED));
+                    FrameEncoder.put_varint(header, n);
+                    wire.write(header.array(), 0, header.position());
+                    wire.write(out, 0, n);
+                } else if (wire != null)
+                    wire.write(in, start, pos + length - start);
+
+                pos += length;
+            }
+
+            return wire;
+        }
+
+        /**
+         * Deflates one payload into out and returns its compressed size,
+         * or -1 to leave it raw. A stream payload is always sent
+         * compressed, even if it grew: the peer's inflater has to see
+         * every byte of the stream.
+         */
+        private int deflate(byte[] in, int off, int len) {
+            if (stream) {
+                deflater.setInput(in, off, len);
+
+                return run(Deflater.SYNC_FLUSH);
+            }
+
+            deflater.reset();
+
+            if (settings.dictionary != null)
+                deflater.setDictionary(settings.dictionary);
+
+            deflater.setInput(in, off, len);
+            deflater.finish();
+
+            int n = run(Deflater.NO_FLUSH);
+
+            return n < len ? n : -1;
+        }
+
+        private int run(int flush) {
+            int n = 0;
+
+            while (true) {
+                n += deflater.deflate(out, n, out.length - n, flush);
+
+                if (n < out.length && (flush == Deflater.SYNC_FLUSH || deflater.finished()))
+                    return n;
+
+                if (n == out.length)
+                    out = Arrays.copyOf(out, out.length * 2);
+            }
+        }
+    }
+
+    private static Frame to_frame(ByteArrayOutputStream wire) {
+        ByteBuffer buf = BufferPool.acquire(wire.size());
+
+        buf.put(wire.toByteArray());
+        buf.flip();
+
+        return new Frame(buf);
+    }
+}
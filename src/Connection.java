@@ -0,0 +1,305 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Connection
+ *
+ * One client socket as seen by ChatServer. Subclasses supply the
+ * transport (NioConnection on an EventLoop, ThreadConnection on its own
+ * reader and writer threads); the protocol itself lives in
+ * ChatServer.handle(). Any thread may queue frames with send_frame();
+ * the transport's writer copies them out with fill(), compressing them
+ * on the way once the peer has negotiated it.
+ */
+public abstract class Connection {
+    final ChatServer server;
+    final SocketChannel sock;
+    final OutboundQueue outbound;
+    final FrameDecoder decoder;
+    final int id;
+    String user;
+    volatile boolean closing;
+    volatile boolean sealed;
+    private final AtomicBoolean closed;
+    volatile long last_read;
+    long accepted_at;
+    volatile TimingWheel.Timeout idle;
+    boolean pinged;
+    boolean compress_offered;
+    TokenBucket messages;
+    RateLimiter.Peer peer;
+    private Frame writing;
+    private int writing_pos;
+    private Compression.Deflate deflate;
+    private volatile Compression.Deflate deflate_next;
+    private volatile Frame deflate_after;
+    volatile Frame roster_tail;
+
+    Connection(ChatServer server, SocketChannel sock, int id) {
+        this.server = server;
+        this.sock = sock;
+        this.id = id;
+
+        outbound = new OutboundQueue();
+        decoder = new FrameDecoder();
+        closed = new AtomicBoolean();
+        last_read = System.nanoTime();
+
+        Frame preamble = FrameEncoder.preamble_frame();
+
+        preamble.pinned = true;
+        outbound.offer(preamble, false);
+    }
+
+    /**
+     * Makes sure queued frames will be written soon.
+     */
+    abstract void schedule_flush();
+
+    /**
+     * True on the thread that drains the outbound queue, which must never
+     * wait on that queue for room.
+     */
+    abstract boolean on_writer_thread();
+
+    /**
+     * Stops taking frames from the peer for about nanos; called on the
+     * reading thread when a DELAY rate limit is exceeded.
+     */
+    abstract void pause_reading(long nanos);
+
+    /**
+     * Runs login, the work that turns a USER frame into a ready user.
+     * By default that happens right away on the reading thread.
+     */
+    void handshake(Runnable login) {
+        login.run();
+    }
+
+    /**
+     * True while frames already read should be left for later.
+     */
+    boolean paused() {
+        return false;
+    }
+
+    /**
+     * Notes that the peer sent something; any read proves it alive.
+     */
+    void touch() {
+        last_read = System.nanoTime();
+    }
+
+    /**
+     * Dispatches every complete frame in buf, leaving any partial frame
+     * unread.
+     */
+    void read_frames(ByteBuffer buf) throws IOException {
+        Message m;
+
+        while (sock.isOpen() && !closing && !paused() && (m = decoder.decode(buf)) != null)
+            server.handle(this, m);
+    }
+
+    /**
+     * Queues an encoded frame, taking over the caller's reference to it
+     * whether or not it could be queued. A sealed connection quietly
+     * discards it.
+     */
+    boolean send_frame(Frame frame) {
+        return send_frame(frame, true);
+    }
+
+    /**
+     * As send_frame(frame), but with may_wait false a full queue is an
+     * overflow even under the BLOCK policy, for callers that hold a lock
+     * other threads need.
+     */
+    boolean send_frame(Frame frame, boolean may_wait) {
+        if (sealed) {
+            frame.release();
+            return true;
+        }
+
+        return queue(frame, may_wait);
+    }
+
+    private boolean queue(Frame frame, boolean may_wait) {
+        if (!sock.isOpen()) {
+            frame.release();
+            return false;
+        }
+
+        if (!outbound.offer(frame, may_wait && !on_writer_thread())) {
+            frame.release();
+            close();
+            return false;
+        }
+
+        // lost a race with close(), which may already have emptied the queue
+        if (!sock.isOpen()) {
+            outbound.clear();
+            return false;
+        }
+
+        server.metrics().message_out();
+        schedule_flush();
+
+        return true;
+    }
+
+    boolean send_message(String message) {
+        try {
+            return send_frame(FrameEncoder.encode_shared(new Message(Message.MESSAGE, message)));
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            return true;
+        }
+    }
+
+    /**
+     * Takes up a negotiated compression: the peer's compressed frames are
+     * accepted from now on, and ours are compressed from the frame after
+     * answer, which tells the peer. Reading thread only.
+     */
+    void compress(Compression chosen, Compression.Deflate deflate, Frame answer) {
+        decoder.inflate(chosen);
+        deflate_next = deflate;
+        deflate_after = answer;
+
+        // dropping it would leave the two sides disagreeing on compression
+        answer.pinned = true;
+        send_frame(answer);
+    }
+
+    /**
+     * Tells the peer why it is being turned away, then closes once
+     * that frame has been written.
+     */
+    void reject(String reason) throws IOException {
+        finish(new Message(Message.DISCONNECT, reason));
+    }
+
+    /**
+     * Queues last behind everything already queued, takes nothing more,
+     * and closes once it has been written. Sealing first, and finishing
+     * later, keeps out frames queued in between.
+     */
+    void finish(Message last) throws IOException {
+        sealed = true;
+
+        Frame frame = FrameEncoder.encode_shared(last);
+
+        frame.pinned = true;
+
+        if (!queue(frame, true))
+            return;
+
+        // only now, or a writer could find the queue empty and quit early
+        closing = true;
+        schedule_flush();
+    }
+
+    /**
+     * Copies queued frames into out until it is full or nothing is left,
+     * releasing each frame once it has been copied completely. Writer
+     * thread only.
+     */
+    void fill(ByteBuffer out) {
+        while (out.hasRemaining()) {
+            if (writing == null) {
+                Frame next = outbound.poll();
+
+                if (next == null)
+                    return;
+
+                writing = deflate == null ? next : deflate(next);
+                writing_pos = 0;
+
+                if (next == deflate_after) {
+                    deflate = deflate_next;
+                    deflate_after = null;
+                }
+
+                if (next == roster_tail)
+                    roster_tail = null;
+            }
+
+            int n = Math.min(out.remaining(), writing.length() - writing_pos);
+
+            writing.copy_to(writing_pos, out, n);
+            writing_pos += n;
+
+            if (writing_pos == writing.length()) {
+                writing.release();
+                writing = null;
+            }
+        }
+    }
+
+    private Frame deflate(Frame frame) {
+        int raw = frame.length();
+        Frame wire = deflate.apply(frame);
+
+        if (wire != frame)
+            server.metrics().compressed(raw, wire.length());
+
+        return wire;
+    }
+
+    /**
+     * True while frames are waiting for fill(). Writer thread only.
+     */
+    boolean has_queued() {
+        return writing != null || !outbound.is_empty();
+    }
+
+    /**
+     * Releases everything still waiting to be written, and the deflater.
+     * Writer thread only.
+     */
+    void discard_queued() {
+        if (writing != null) {
+            writing.release();
+            writing = null;
+        }
+
+        outbound.clear();
+
+        Compression.Deflate next = deflate_next;
+
+        if (deflate != null)
+            deflate.end();
+
+        if (next != null && next != deflate)
+            next.end();
+
+        deflate = null;
+        deflate_next = null;
+    }
+
+    void drop() {
+        close();
+        server.remove_user(id);
+    }
+
+    void close() {
+        if (closed.compareAndSet(false, true)) {
+            server.metrics().closed();
+            server.limiter().detach(this);
+        }
+
+        TimingWheel.Timeout t = idle;
+
+        if (t != null)
+            t.cancel();
+
+        try {
+            sock.close();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter
+ *
+ * A count that many threads bump at once. Adds are spread over
+ * cache-line padded cells picked by thread id, so hot counters do not
+ * bounce one line between cores; get() sums the cells. Most only ever
+ * go up, but negative adds are fine too, which makes a gauge such as
+ * BufferPool's buffers in use; a sum taken while cells change may then
+ * be briefly off by the adds in flight.
+ */
+public class Counter {
+    private static final int STRIPES = Integer.highestOneBit(
+            Math.max(1, Runtime.getRuntime().availableProcessors() * 2 - 1)) << 1;
+    private static final int PAD = 8;
+
+    private final AtomicLongArray cells;
+
+    public Counter() {
+        cells = new AtomicLongArray(STRIPES * PAD);
+    }
+
+    public void increment() {
+        cells.getAndIncrement(cell());
+    }
+
+    public void add(long n) {
+        cells.getAndAdd(cell(), n);
+    }
+
+    public long get() {
+        long sum = 0;
+
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PAD);
+
+        return sum;
+    }
+
+    private static int cell() {
+        long h = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+
+        return ((int)(h >>> 32) & (STRIPES - 1)) * PAD;
+    }
+}
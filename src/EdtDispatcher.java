@@ -0,0 +1,79 @@
+import java.awt.EventQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * EdtDispatcher
+ *
+ * Hands events from network threads to the Swing event dispatch thread.
+ * Events are queued up to a fixed capacity (anything beyond it is counted
+ * and dropped, so a flood can never grow the heap) and run in batches,
+ * one invokeLater() per batch rather than per event.
+ */
+public class EdtDispatcher {
+    private static final int MAX_BATCH = 256;
+
+    private final ConcurrentLinkedQueue<Runnable> events;
+    private final AtomicInteger size;
+    private final AtomicBoolean scheduled;
+    private final AtomicLong dropped;
+    private final int capacity;
+    private final Runnable drain;
+
+    public EdtDispatcher(int capacity) {
+        this.capacity = capacity;
+
+        events = new ConcurrentLinkedQueue<Runnable>();
+        size = new AtomicInteger();
+        scheduled = new AtomicBoolean();
+        dropped = new AtomicLong();
+        drain = new Runnable() {
+            public void run() {
+                drain();
+            }
+        };
+    }
+
+    /**
+     * Queues an event for the EDT. Returns false if the queue was full
+     * and the event was dropped.
+     */
+    public boolean post(Runnable event) {
+        if (size.incrementAndGet() > capacity) {
+            size.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+
+        events.add(event);
+        schedule();
+
+        return true;
+    }
+
+    public long dropped() {
+        return dropped.get();
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true))
+            EventQueue.invokeLater(drain);
+    }
+
+    private void drain() {
+        scheduled.set(false);
+
+        Runnable event;
+
+        for (int i = 0; i < MAX_BATCH && (event = events.poll()) != null; i++) {
+            size.decrementAndGet();
+            event.run();
+        }
+
+        // leave the EDT free for input and painting between batches
+        if (!events.isEmpty())
+            schedule();
+    }
+}
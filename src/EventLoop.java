@@ -0,0 +1,165 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EventLoop
+ *
+ * One selector thread multiplexing reads and writes for a share of the
+ * server's connections. Other threads hand work to the loop through
+ * execute(), which queues the task and wakes the selector.
+ *
+ * Connections with frames to send are only marked dirty; they are
+ * flushed together at the end of a pass once the flush deadline is due,
+ * so a burst of broadcasts costs one write per connection, not one per
+ * frame.
+ */
+public class EventLoop extends Thread {
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final long FLUSH_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(ServerConfig.FLUSH_DELAY_US);
+
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> tasks;
+    private final ByteBuffer read_buffer;
+    private final ArrayDeque<NioConnection> dirty;
+    private long flush_deadline;
+    private volatile boolean stay_alive;
+
+    public EventLoop(int index) throws IOException {
+        super("jedirc-loop-" + index);
+
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<Runnable>();
+        read_buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        dirty = new ArrayDeque<NioConnection>();
+        stay_alive = true;
+
+        setDaemon(true);
+    }
+
+    public void register(final NioConnection c) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    c.key = c.sock.register(selector, SelectionKey.OP_READ, c);
+                } catch (IOException ioe) {
+                    System.err.println(ioe.getMessage());
+                    c.close();
+                }
+            }
+        });
+    }
+
+    public void execute(Runnable task) {
+        tasks.add(task);
+
+        if (Thread.currentThread() != this)
+            selector.wakeup();
+    }
+
+    /**
+     * Scratch buffer shared by every connection on this loop; only valid
+     * for the duration of a single on_readable() call.
+     */
+    ByteBuffer read_buffer() {
+        return read_buffer;
+    }
+
+    /**
+     * Marks a connection as having frames to send. Loop thread only.
+     */
+    void flush_later(NioConnection c) {
+        if (dirty.isEmpty())
+            flush_deadline = System.nanoTime() + FLUSH_DELAY_NANOS;
+
+        dirty.add(c);
+    }
+
+    public void shutdown() {
+        stay_alive = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        while (stay_alive) {
+            try {
+                select();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                break;
+            }
+
+            run_tasks();
+
+            Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+            while (it.hasNext()) {
+                SelectionKey key = it.next();
+                it.remove();
+
+                NioConnection c = (NioConnection)key.attachment();
+
+                if (key.isValid() && key.isWritable())
+                    c.on_writable();
+                if (key.isValid() && key.isReadable())
+                    c.on_readable();
+            }
+
+            if (!dirty.isEmpty() && System.nanoTime() - flush_deadline >= 0)
+                flush_dirty();
+        }
+
+        close();
+    }
+
+    private void select() throws IOException {
+        // tasks queued by this thread itself never woke the selector
+        if (!tasks.isEmpty()) {
+            selector.selectNow();
+        } else if (!dirty.isEmpty()) {
+            long wait = flush_deadline - System.nanoTime();
+
+            if (wait <= 0)
+                selector.selectNow();
+            else
+                selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+        } else
+            selector.select();
+    }
+
+    private void flush_dirty() {
+        NioConnection c;
+        int n = dirty.size();
+
+        // connections re-marked while flushing wait for the next pass
+        while (n-- > 0 && (c = dirty.poll()) != null)
+            c.flush_now();
+    }
+
+    private void run_tasks() {
+        Runnable task;
+
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                System.err.println(e.getMessage());
+            }
+        }
+    }
+
+    private void close() {
+        for (SelectionKey key : selector.keys())
+            ((NioConnection)key.attachment()).close();
+
+        try {
+            selector.close();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
+    }
+}
@@ -0,0 +1,127 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Frame
+ *
+ * One encoded frame in a pooled buffer, shared by every connection it is
+ * queued on. Each holder owns a reference: fan-out retains one per
+ * recipient, writers release theirs once the bytes are copied out, and
+ * the buffer returns to the BufferPool with the last release. Holders
+ * never move the buffer's position; they read it with copy_to().
+ * Compressed forms made for deflate connections are kept alongside and
+ * go with it.
+ */
+public final class Frame {
+    private final ByteBuffer data;
+    private final int length;
+    private final AtomicInteger refs;
+    private final BufferPool.Leak leak;
+    private volatile AtomicReferenceArray<Frame> variants;
+
+    /**
+     * Set on a connection's own control frames (the preamble, the
+     * COMPRESS answer, roster snapshots, the last frame before closing),
+     * which an OutboundQueue must deliver rather than drop to make room.
+     * Set before the frame is queued; such frames are never shared.
+     */
+    boolean pinned;
+
+    /**
+     * Takes over data, a pooled buffer holding the frame between 0 and
+     * its limit, with a single reference owned by the caller.
+     */
+    Frame(ByteBuffer data) {
+        this.data = data;
+        this.length = data.limit();
+
+        refs = new AtomicInteger(1);
+        leak = BufferPool.track(this, data);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public Frame retain() {
+        if (refs.getAndIncrement() <= 0)
+            throw new IllegalStateException("frame retained after release");
+
+        return this;
+    }
+
+    public void release() {
+        int left = refs.decrementAndGet();
+
+        if (left == 0) {
+            AtomicReferenceArray<Frame> v = variants;
+
+            for (int i = 0; v != null && i < v.length(); i++) {
+                Frame f = v.get(i);
+
+                if (f != null && f != this)
+                    f.release();
+            }
+
+            BufferPool.untrack(leak);
+            BufferPool.release(data);
+        } else if (left < 0)
+            throw new IllegalStateException("frame released too often");
+    }
+
+    /**
+     * This frame as compressed by codec, made by whichever writer asks
+     * first and kept for every other connection using the same codec, or
+     * this frame itself if nothing in it compresses. The caller must
+     * hold a reference, and gets a new one to release.
+     */
+    Frame variant(Compression.Shared codec) {
+        AtomicReferenceArray<Frame> v = variants;
+
+        if (v == null) {
+            synchronized (this) {
+                if (variants == null)
+                    variants = new AtomicReferenceArray<Frame>(Compression.Shared.SLOTS);
+
+                v = variants;
+            }
+        }
+
+        Frame made = v.get(codec.slot);
+
+        if (made == null) {
+            made = codec.encode(this);
+
+            if (made == null)
+                made = this;
+
+            if (!v.compareAndSet(codec.slot, null, made)) {
+                if (made != this)
+                    made.release();
+
+                made = v.get(codec.slot);
+            }
+        }
+
+        return made.retain();
+    }
+
+    /**
+     * Copies n bytes starting at offset from into dst at its position,
+     * using absolute reads only, so any number of threads may copy from
+     * the same frame at once.
+     */
+    public void copy_to(int from, ByteBuffer dst, int n) {
+        int pos = dst.position();
+        int i = 0;
+
+        for (; i + 8 <= n; i += 8)
+            dst.putLong(pos + i, data.getLong(from + i));
+
+        for (; i < n; i++)
+            dst.put(pos + i, data.get(from + i));
+
+        dst.position(pos + n);
+    }
+}
@@ -0,0 +1,184 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * FrameDecoder
+ *
+ * Reads the stream written by FrameEncoder. One decoder per connection,
+ * since it remembers whether the peer's preamble has been checked and,
+ * once compression is negotiated, holds the connection's inflater.
+ */
+public class FrameDecoder {
+    private static final int MAX_VARINT_SHIFT = 21;
+    private static final int INFLATE_BUFFER_SIZE = 1024;
+
+    private boolean preamble_read;
+    private Compression compression;
+    private Inflater inflater;
+    private byte[] inflated;
+
+    /**
+     * Accepts compressed frames from here on, as negotiated.
+     */
+    public void inflate(Compression compression) {
+        end();
+
+        this.compression = compression;
+
+        inflater = compression.inflater();
+        inflated = new byte[INFLATE_BUFFER_SIZE];
+    }
+
+    /**
+     * Frees the inflater's native memory; call when the connection is done.
+     */
+    public void end() {
+        if (inflater != null)
+            inflater.end();
+
+        inflater = null;
+    }
+
+    /**
+     * Decodes the next frame from buf, or returns null and leaves the
+     * unread bytes in buf if the frame has not been fully received yet.
+     */
+    public Message decode(ByteBuffer buf) throws IOException {
+        if (!preamble_read) {
+            if (buf.remaining() < FrameEncoder.PREAMBLE_SIZE)
+                return null;
+
+            check_preamble(buf.get(), buf.get());
+        }
+
+        int start = buf.position();
+        int pos = start + 1;
+        int length = 0;
+        int shift = 0;
+
+        while (true) {
+            if (pos >= buf.limit())
+                return null;
+
+            int b = buf.get(pos++);
+            length |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0)
+                break;
+
+            shift += 7;
+
+            if (shift > MAX_VARINT_SHIFT)
+                throw new IOException("malformed frame length");
+        }
+
+        int type = buf.get(start) & 0xff;
+
+        check_length(type, length);
+
+        if (buf.limit() - pos < length)
+            return null;
+
+        String payload;
+
+        if (buf.hasArray()) {
+            payload = payload(type, buf.array(), buf.arrayOffset() + pos, length);
+        } else {
+            byte[] bytes = new byte[length];
+            buf.position(pos);
+            buf.get(bytes);
+            payload = payload(type, bytes, 0, length);
+        }
+
+        buf.position(pos + length);
+
+        return new Message(type & ~Compression.COMPRESSED, payload);
+    }
+
+    /**
+     * Blocking counterpart of decode() for stream based peers.
+     */
+    public Message read(DataInputStream input) throws IOException {
+        if (!preamble_read)
+            check_preamble(input.readByte(), input.readByte());
+
+        int type = input.readUnsignedByte();
+        int length = 0;
+        int shift = 0;
+
+        while (true) {
+            int b = input.readUnsignedByte();
+            length |= (b & 0x7f) << shift;
+
+            if ((b & 0x80) == 0)
+                break;
+
+            shift += 7;
+
+            if (shift > MAX_VARINT_SHIFT)
+                throw new IOException("malformed frame length");
+        }
+
+        byte[] payload = new byte[check_length(type, length)];
+        input.readFully(payload);
+
+        return new Message(type & ~Compression.COMPRESSED, payload(type, payload, 0, length));
+    }
+
+    private String payload(int type, byte[] bytes, int off, int length) throws IOException {
+        if ((type & Compression.COMPRESSED) == 0)
+            return new String(bytes, off, length, StandardCharsets.UTF_8);
+
+        if (inflater == null)
+            throw new IOException("compressed frame without compression");
+
+        compression.next_payload(inflater);
+        inflater.setInput(bytes, off, length);
+
+        int n = 0;
+
+        try {
+            while (true) {
+                if (n == inflated.length) {
+                    if (n > FrameEncoder.MAX_PAYLOAD)
+                        throw new IOException("compressed frame inflates past " + FrameEncoder.MAX_PAYLOAD + " bytes");
+
+                    inflated = Arrays.copyOf(inflated, Math.min(2 * n, FrameEncoder.MAX_PAYLOAD + 1));
+                }
+
+                int got = inflater.inflate(inflated, n, inflated.length - n);
+
+                if (got == 0)
+                    break;
+
+                n += got;
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("bad compressed frame: " + dfe.getMessage());
+        }
+
+        return new String(inflated, 0, n, StandardCharsets.UTF_8);
+    }
+
+    private void check_preamble(byte magic, byte version) throws IOException {
+        if (magic != FrameEncoder.MAGIC)
+            throw new IOException("not a JedIRC stream");
+        if (version != FrameEncoder.VERSION)
+            throw new IOException("unsupported protocol version " + version);
+
+        preamble_read = true;
+    }
+
+    private static int check_length(int type, int length) throws IOException {
+        int max = (type & Compression.COMPRESSED) == 0 ? FrameEncoder.MAX_PAYLOAD : Compression.MAX_COMPRESSED;
+
+        if (length < 0 || length > max)
+            throw new IOException("invalid frame length " + length);
+
+        return length;
+    }
+}
@@ -0,0 +1,112 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * FrameEncoder
+ *
+ * Wire format shared by JediServer and JediClient. Each side opens the
+ * stream with a two byte preamble (MAGIC, VERSION), after which every
+ * Message travels as
+ *
+ *     type (1 byte) | payload length (unsigned varint) | UTF-8 payload
+ *
+ * Once a connection has negotiated compression, a type with the top bit
+ * set marks a payload that is deflated; see Compression.
+ */
+public class FrameEncoder {
+    public static final byte MAGIC = 'J';
+    public static final byte VERSION = 1;
+    public static final int PREAMBLE_SIZE = 2;
+    public static final int MAX_PAYLOAD = 64 * 1024;
+
+    private FrameEncoder() {
+    }
+
+    public static ByteBuffer preamble() {
+        ByteBuffer buf = ByteBuffer.allocate(PREAMBLE_SIZE);
+
+        buf.put(MAGIC);
+        buf.put(VERSION);
+        buf.flip();
+
+        return buf;
+    }
+
+    public static ByteBuffer encode(Message m) throws IOException {
+        String message = m.get_message() == null ? "" : m.get_message();
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+
+        if (payload.length > MAX_PAYLOAD)
+            throw new IOException("message too long (" + payload.length + " bytes)");
+
+        ByteBuffer buf = ByteBuffer.allocate(1 + varint_size(payload.length) + payload.length);
+
+        buf.put((byte)m.get_type());
+        put_varint(buf, payload.length);
+        buf.put(payload);
+        buf.flip();
+
+        return buf;
+    }
+
+    /**
+     * Encodes m once into a pooled Frame that any number of connections
+     * can queue; the caller owns its single reference.
+     */
+    public static Frame encode_shared(Message m) throws IOException {
+        String message = m.get_message() == null ? "" : m.get_message();
+        byte[] payload = message.getBytes(StandardCharsets.UTF_8);
+
+        if (payload.length > MAX_PAYLOAD)
+            throw new IOException("message too long (" + payload.length + " bytes)");
+
+        ByteBuffer buf = BufferPool.acquire(1 + varint_size(payload.length) + payload.length);
+
+        buf.put((byte)m.get_type());
+        put_varint(buf, payload.length);
+        buf.put(payload);
+        buf.flip();
+
+        return new Frame(buf);
+    }
+
+    public static Frame preamble_frame() {
+        ByteBuffer buf = BufferPool.acquire(PREAMBLE_SIZE);
+
+        buf.put(MAGIC);
+        buf.put(VERSION);
+        buf.flip();
+
+        return new Frame(buf);
+    }
+
+    public static void write_preamble(OutputStream output) throws IOException {
+        output.write(preamble().array());
+    }
+
+    public static void write(OutputStream output, Message m) throws IOException {
+        ByteBuffer frame = encode(m);
+
+        output.write(frame.array(), 0, frame.limit());
+        output.flush();
+    }
+
+    static int varint_size(int value) {
+        int size = 1;
+
+        while ((value >>>= 7) != 0)
+            size++;
+
+        return size;
+    }
+
+    static void put_varint(ByteBuffer buf, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf.put((byte)((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+
+        buf.put((byte)value);
+    }
+}
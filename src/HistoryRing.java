@@ -0,0 +1,79 @@
+import java.nio.ByteBuffer;
+
+/**
+ * HistoryRing
+ *
+ * The last few broadcast frames of one channel, kept already encoded so
+ * a joiner can be sent the whole scrollback as a single buffer. Bounded
+ * by both a line count and a byte total; the oldest lines go first.
+ */
+public class HistoryRing {
+    private final Frame[] frames;
+    private final int max_bytes;
+    private int head;
+    private int count;
+    private int bytes;
+    private boolean closed;
+
+    public HistoryRing(int max_lines, int max_bytes) {
+        this.frames = new Frame[Math.max(1, max_lines)];
+        this.max_bytes = max_bytes;
+    }
+
+    /**
+     * Remembers a frame, holding a reference of its own until the line
+     * is evicted.
+     */
+    public synchronized void add(Frame frame) {
+        int size = frame.length();
+
+        if (closed || size > max_bytes)
+            return;
+
+        while (count == frames.length || bytes + size > max_bytes)
+            evict();
+
+        frames[(head + count) % frames.length] = frame.retain();
+        count++;
+        bytes += size;
+    }
+
+    private void evict() {
+        bytes -= frames[head].length();
+        frames[head].release();
+        frames[head] = null;
+        head = (head + 1) % frames.length;
+        count--;
+    }
+
+    /**
+     * The remembered frames, oldest first, concatenated into one frame
+     * ready to send, or null if there are none.
+     */
+    public synchronized Frame replay() {
+        if (count == 0)
+            return null;
+
+        ByteBuffer batch = BufferPool.acquire(bytes);
+
+        for (int i = 0; i < count; i++) {
+            Frame f = frames[(head + i) % frames.length];
+            f.copy_to(0, batch, f.length());
+        }
+
+        batch.flip();
+
+        return new Frame(batch);
+    }
+
+    /**
+     * Releases every remembered line; the ring remembers nothing more
+     * after this.
+     */
+    public synchronized void close() {
+        closed = true;
+
+        while (count > 0)
+            evict();
+    }
+}
@@ -1,7 +1,6 @@
 import java.awt.event.*;
 import java.io.*;
-import java.net.*;
-import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import javax.swing.JOptionPane;
 
 /**
@@ -10,29 +9,52 @@ import javax.swing.JOptionPane;
  * @author Scott Christopher Stauffer
  */
 public class JediClient extends javax.swing.JFrame {
-    private Socket sock;
-    private ObjectInputStream input;
-    private ObjectOutputStream output;
+    private static final int ROSTER_EVENTS = 4096;
+
+    private ChatClient client;
     private String server, user;
     private int port;
-    private ArrayList<String> users;
+    private RosterModel roster;
+    private EdtDispatcher edt;
+    private AtomicBoolean resync_pending;
+    private ChatLog chat_log;
     
     public JediClient() {
         use_default_config();
         initialize();
         initComponents();
+        init_views();
     }
     
     public JediClient(String server, int port, String user) {
         setup_client(server, user, port);
         initialize();
         initComponents();
+        init_views();
     }
     
     private void initialize(){
-        users = new ArrayList();
+        roster = new RosterModel();
+        edt = new EdtDispatcher(ROSTER_EVENTS);
+        resync_pending = new AtomicBoolean();
+
+        try {
+            client = new ChatClient(new JediClient.Listener());
+            client.start();
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        }
     }
     
+    @SuppressWarnings("unchecked")
+    private void init_views() {
+        chat_log = new ChatLog(txtChatLog);
+
+        // fixed row sizes, so thousands of users are never measured one by one
+        lstUsers.setPrototypeCellValue("MMMMMMMMMMMMMMMM");
+        lstUsers.setModel(roster);
+    }
+
     private void use_default_config() {
         setup_client("localhost", "anon", 31337);
     }
@@ -44,79 +66,31 @@ public class JediClient extends javax.swing.JFrame {
         this.port = port;
     }
 
-    private boolean create_socket() {
-        boolean pass = true;
-
-        try {
-            sock = new Socket(server, port);
-        } catch(Exception e) {
-            System.err.println("could not create socket...");
-            pass = !pass;
-        }
-
-        return pass;
-    }
-
-    private boolean create_streams() {
-        boolean pass = true;
-
-        try {
-            input = new ObjectInputStream(sock.getInputStream());
-            output = new ObjectOutputStream(sock.getOutputStream());
-        } catch (IOException ioe) {
-            System.err.println(ioe.getMessage());
-            pass = !pass;
-        }
-
-        return pass;
-    }
-
-    private boolean send_user() {
-        boolean pass = true;
-
-        try {
-            output.writeObject(user);
-            
-        } catch (IOException ioe) {
-            show_message(ioe.getMessage());
-            disconnect();
-            pass = !pass;
-        }
-
-        return pass;
-    }
-
+    /**
+     * Hands the connect to the client's network thread; progress and
+     * failures come back through the Listener.
+     */
     private boolean start() {
-        boolean pass = true;
-
-        if (create_socket()) {
-            show_message("connection established @ " + sock.getInetAddress() + ":" + sock.getPort());
+        if (client == null)
+            return false;
 
-            if (create_streams()) {
-                new JediClient.Listener().start();
+        show_message("connecting to " + server + ":" + port + "...");
+        client.connect(server, port, user);
 
-                if (send_user())
-                    return pass;
-                else
-                    pass = !pass;
-            } else
-                pass = !pass;
-        } else
-            pass = !pass;
-
-        return pass;
+        return true;
     }
 
     private void show_message(String message) {
-        txtChatLog.append(message + "\r\n");
+        chat_log.append(message);
     }
 
+    /**
+     * Queues a frame for the client's network thread; never blocks the
+     * UI.
+     */
     private void send_message(Message message) {
-        try {
-            output.writeObject(message);
-        } catch(IOException ioe) {
-            show_message(ioe.getMessage());
-        }
+        if (client == null || !client.send(message))
+            show_message("[message not sent]");
     }
     
     private void connect(String arg) {
@@ -141,46 +115,82 @@ public class JediClient extends javax.swing.JFrame {
         setup_client(_server, _user, _port);
 
         if (!start())
-            this.txtChatLog.append("[failure to connect]\r\n");
+            show_message("[failure to connect]");
     }
 
     private void disconnect() {
-        try { 
-            if (input != null) 
-                input.close();
-            if (output != null) 
-                output.close();
-            if (sock != null) 
-                sock.close();
-            
-            send_message(new Message(Message.DISCONNECT, ""));
-            
-            use_default_config();
-        } catch(Exception e) {
-            System.err.println(e.getMessage());
-        }
+        if (client != null)
+            client.disconnect();
+
+        use_default_config();
     }
         
-    class Listener extends Thread {
-        public void run() {
-            while (true) {
-                try {
-                    String in = (String)input.readObject();
-                    
-                    if (in.startsWith("[NEW_USER]:")) {
-                        users.add(in.substring(in.indexOf(":")));
-                        JOptionPane.showMessageDialog(null, "New User", in.substring(in.indexOf(":")), 0);
-                    }
-                    
-                    txtChatLog.append(in);
-                    //txtChatLog.append((String)input.readObject());
-                } catch(IOException ioe) {
-                    System.err.println(ioe.getMessage());
-                    break;
-                } catch(ClassNotFoundException cnfe) {
-                    System.err.println(cnfe.getMessage());
+    /**
+     * Hands a roster change to the EDT. If the dispatcher is full the
+     * change is lost, so the roster is fetched again from scratch.
+     */
+    private void update_roster(Runnable change) {
+        if (!edt.post(change) && resync_pending.compareAndSet(false, true))
+            client.request_roster();
+    }
+
+    /**
+     * Runs on the client's network thread.
+     */
+    class Listener implements ClientListener {
+        public void on_connected(String address) {
+            show_message("connection established @ " + address);
+        }
+
+        public void on_message(String in) {
+            show_message(in);
+        }
+
+        public void on_roster(final String[] users) {
+            resync_pending.set(false);
+            update_roster(new Runnable() {
+                public void run() {
+                    roster.reset(users);
                 }
-            }
+            });
+        }
+
+        public void on_users_joined(final String[] users) {
+            update_roster(new Runnable() {
+                public void run() {
+                    roster.add_all(users);
+                }
+            });
+        }
+
+        public void on_user_left(final String user) {
+            update_roster(new Runnable() {
+                public void run() {
+                    roster.remove(user);
+                }
+            });
+        }
+
+        public void on_user_renamed(final String old, final String user) {
+            update_roster(new Runnable() {
+                public void run() {
+                    roster.rename(old, user);
+                }
+            });
+        }
+
+        public void on_disconnected(String reason, long retry_ms) {
+            if (reason != null && !reason.isEmpty())
+                show_message(reason);
+
+            if (retry_ms >= 0)
+                show_message("[reconnecting in " + (retry_ms + 999) / 1000 + "s]");
+
+            update_roster(new Runnable() {
+                public void run() {
+                    roster.reset(new String[0]);
+                }
+            });
         }
     }
         
@@ -288,7 +298,12 @@ public class JediClient extends javax.swing.JFrame {
                 use_default_config();
             } else if (message.startsWith("/connect") && message.contains(":") && message.contains("@"))
                 connect(message.split(" ", 2)[1]);
-            else
+            else if (message.startsWith("/nick "))
+                send_message(new Message(Message.NICK, message.substring(6).trim()));
+            else if (message.startsWith("/join ") || message.startsWith("/part ")) {
+                int type = message.startsWith("/join ") ? Message.JOIN : Message.PART;
+                send_message(new Message(type, message.substring(6).trim()));
+            } else
                 send_message(new Message(Message.MESSAGE, txtMessage.getText()));
             
             txtMessage.setText("");
@@ -1,32 +1,56 @@
-import java.io.*;
-import java.net.*;
+import java.awt.EventQueue;
 import java.util.*;
-import javax.swing.DefaultListModel;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * JediServer
- * 
+ *
+ * Swing console for a ChatServer. The server runs fine without it; this
+ * window only observes, with log lines rendered once per frame through a
+ * ChatLog and the connection list kept in a RosterModel that is patched
+ * one join, leave or rename at a time.
+ *
  * @author Scott Christopher Stauffer
  */
-public class JediServer extends javax.swing.JFrame {
-    private ServerSocket server_sock;
-    private ArrayList<JediServer.Connection> clients;
-    private boolean stay_alive;
-    private int port;
-    public int client_count;
-    private static JediServer server;
-    
-    public JediServer(int port) {
-        clients = new ArrayList<JediServer.Connection>();
-        this.port = port;
-        
+public class JediServer extends javax.swing.JFrame implements ServerListener {
+    private static final int ROSTER_EVENTS = 4096;
+
+    private ChatServer server;
+    private ChatLog chat_log;
+    private RosterModel roster;
+    private EdtDispatcher edt;
+    private AtomicBoolean resync_pending;
+    private Runnable resync;
+    // EDT only: the last roster change shown
+    private long roster_seq;
+
+    public JediServer(ChatServer server) {
+        this.server = server;
+        roster = new RosterModel();
+        edt = new EdtDispatcher(ROSTER_EVENTS);
+        resync_pending = new AtomicBoolean();
+        resync = new Runnable() {
+            public void run() {
+                resync();
+            }
+        };
+
         initComponents();
+        init_views();
+
+        server.add_listener(this);
     }
-    
+
     public JediServer() {
         initComponents();
     }
-    
+
+    @SuppressWarnings("unchecked")
+    private void init_views() {
+        lstConnections.setModel(roster);
+        chat_log = new ChatLog(txtChatView);
+    }
+
     public static void main(String[] args) {
         int _port = 31337;
 
@@ -38,196 +62,94 @@ public class JediServer extends javax.swing.JFrame {
                 _port = 31337;
             }
 
-            server = new JediServer(_port);
+            final ChatServer server = new ChatServer(_port);
+            server.drain_on_exit();
+
+            EventQueue.invokeLater(new Runnable() {
+                public void run() {
+                    new JediServer(server).setVisible(true);
+                }
+            });
+
             server.start();
-            
-            server.setVisible(true);
         } else
             System.err.println("usage:\tjava JServer port");
     }
 
-    public void start() {
-        stay_alive = true;
-
-        try {
-            server_sock = new ServerSocket(port);
-
-            while (stay_alive) {
-                show_message("listening for connections on " + port);
-
-                Socket sock = server_sock.accept();
+    public void on_message(String message) {
+        chat_log.append(message);
+    }
 
-                if (!stay_alive)
-                    break;
+    public void on_user_joined(final long seq, int id, final String user) {
+        update_roster(new Runnable() {
+            public void run() {
+                if (!advance(seq))
+                    return;
 
-                JediServer.Connection c = new JediServer.Connection(sock);
-                clients.add(c);
-                c.start();
+                roster.add(user);
+                show_count();
             }
-
-            disconnect();
-        } catch (IOException ioe) {
-            System.err.println(ioe.getMessage());
-        }
-    }
-
-    private void disconnect() {
-        try {
-            server_sock.close();		
-            disconnect_all();
-        } catch (Exception e) {
-            System.err.println(e.getMessage());
-        }
+        });
     }
 
-    private void disconnect_all() {
-        for (int i = 0; i < clients.size(); ++i) {
-            JediServer.Connection c = clients.get(i);
+    public void on_user_left(final long seq, int id, final String user) {
+        update_roster(new Runnable() {
+            public void run() {
+                if (!advance(seq))
+                    return;
 
-            try {
-                if (c.input != null)
-                    c.input.close();
-                if (c.output != null)
-                    c.output.close();
-                if (c.sock != null)
-                    c.sock.close();
-            } catch (IOException ioe) {
-                System.err.println(ioe.getMessage());
+                roster.remove(user);
+                show_count();
             }
-        }
-        
-        clients.clear();
-        clear_users();
-    }
-
-    private void show_message(String message) {
-        //System.out.println(message);
-        this.txtChatView.append(message + "\r\n");
+        });
     }
 
-    private synchronized void broadcast(String message) {
-        show_message(message);
-
-        for (int i = clients.size() - 1; i >= 0; i--) {
-            JediServer.Connection c = clients.get(i);
-
-            if (!c.send_message(message))
-                this.remove_user(i);
-        }
-    }
+    public void on_user_renamed(final long seq, int id, final String old, final String user) {
+        update_roster(new Runnable() {
+            public void run() {
+                if (!advance(seq))
+                    return;
 
-    private void clear_users() {
-        DefaultListModel listModel = (DefaultListModel)lstConnections.getModel();
-        listModel.removeAllElements();
-    }
-    
-    private void update_users() {
-        DefaultListModel listModel = (DefaultListModel)lstConnections.getModel();
-        
-        for (JediServer.Connection c : clients)
-            listModel.addElement(c.user);
-        
-        this.lblConnections.setText("Connections (" + clients.size() + ")");
-    }
-    
-    public synchronized void remove_user(int id) {
-        for (int i = 0; i < clients.size(); i++) {
-            JediServer.Connection c = clients.get(i);
-
-            if (c.id == id) {
-                clients.remove(i);
-                break;
+                roster.rename(old, user);
+                show_count();
             }
-        }
-
-        clear_users();
-        update_users();
+        });
     }
 
-    class Connection extends Thread {
-        Socket sock;
-        ObjectInputStream input;
-        ObjectOutputStream output;
-        String user;
-        Message m;
-        int id;
-
-        Connection(Socket sock) {
-            id = client_count++;
-            this.sock = sock;
+    /**
+     * Hands a roster change to the EDT. If the dispatcher is full the
+     * change is lost, so the list is rebuilt from a fresh snapshot.
+     */
+    private void update_roster(Runnable change) {
+        if (!edt.post(change) && resync_pending.compareAndSet(false, true))
+            EventQueue.invokeLater(resync);
+    }
 
-            try {
-                output = new ObjectOutputStream(sock.getOutputStream());
-                input  = new ObjectInputStream(sock.getInputStream());
-                user = (String)input.readObject();
-                show_message(user + " has connected");
-                
-                broadcast("[NEW_USER]:" + user);
-            } catch (IOException | ClassNotFoundException e) {
-                System.err.println(e.getMessage());
-            }
-        }
-
-        @Override
-        public void run() {
-            String message;
-            boolean stay_alive = true;
-
-            while (stay_alive) {
-                try {
-                    m = (Message)input.readObject();
-                } catch (IOException | ClassNotFoundException e) {
-                    System.err.println(e.getMessage());
-                    break;
-                }
+    /**
+     * Skips changes already covered by the last snapshot.
+     */
+    private boolean advance(long seq) {
+        if (seq <= roster_seq)
+            return false;
 
-                message = m.get_message();
+        roster_seq = seq;
 
-                switch (m.get_type()) {
-                    case Message.MESSAGE:
-                        broadcast(user + ": " + message);
-                    break;
+        return true;
+    }
 
-                    case Message.DISCONNECT:
-                        show_message(user + " has been disconnected");
-                        stay_alive = false;
-                    break;
-                }
-            }
+    private void resync() {
+        // cleared first, so a change lost from here on asks again
+        resync_pending.set(false);
 
-            remove(id);
-            close();
-        }
+        List<String> users = new ArrayList<String>();
 
-        private void close() {
-            try {
-                if (output != null) 
-                    output.close();
-                if (input != null) 
-                    input.close();
-                if (sock != null)
-                    sock.close();
-            } catch (Exception e) {
-                System.err.println(e.getMessage());
-            }
-        }
-
-        private boolean send_message(String message) {
-            boolean pass = true;
-
-            if (!sock.isConnected()) {
-                close();
-                pass = !pass;
-            } else {				
-                try {
-                    output.writeObject(message);
-                } catch (IOException e) {
-                    System.err.println(e.getMessage());
-                }
-            }
+        roster_seq = server.roster(users);
+        roster.reset(users.toArray(new String[users.size()]));
+        show_count();
+    }
 
-            return pass;
-        }
+    private void show_count() {
+        lblConnections.setText("Connections (" + roster.getSize() + ")");
     }
 
     @SuppressWarnings("unchecked")
@@ -0,0 +1,664 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Journal
+ *
+ * Durable, append-only log of every broadcast line. Records go into
+ * fixed-size, memory-mapped segment files named after their first
+ * sequence number:
+ *
+ *     int length | int crc | long seq | long time_ms | UTF-8 text
+ *
+ * append() is a copy into the mapping and never touches the disk; a
+ * background thread forces dirty segments every sync interval, so one
+ * fsync covers every line appended since the last one (group commit).
+ * A process crash loses nothing, a power loss at most one interval.
+ *
+ * Each segment keeps a sparse in-memory index of (seq, time, offset),
+ * built as records are appended or, for older segments, on first read.
+ * Only the few older segments read most recently stay mapped, and once
+ * there are more segments than the retention limit the oldest are
+ * deleted. On open the last segment is scanned up to the first torn or
+ * out-of-sequence record and appending resumes there.
+ */
+public class Journal implements Closeable {
+    static final int HEADER_SIZE = 24;
+    private static final int INDEX_INTERVAL = 4096;
+    private static final int MIN_SEGMENT_SIZE = 1 << 20;
+    private static final int MAX_MAPPED = 4;
+    private static final String SUFFIX = ".log";
+
+    private final File dir;
+    private final int segment_size;
+    private final long sync_nanos;
+    private final int retain_segments;
+    private final ReentrantLock lock;
+    private final ArrayList<Segment> segments;
+    private final ArrayList<Segment> retired;
+    private final ArrayDeque<Segment> mapped;
+    private final CRC32 crc;
+    private final ByteBuffer scratch;
+    private Segment active;
+    private long next_seq;
+    private long last_time;
+    private boolean dirty;
+    private volatile boolean open;
+    private Thread syncer;
+
+    public static class Entry {
+        public final long seq;
+        public final long time;
+        public final String text;
+
+        Entry(long seq, long time, String text) {
+            this.seq = seq;
+            this.time = time;
+            this.text = text;
+        }
+    }
+
+    /**
+     * A journal in dir keeping at most retain_segments segment files,
+     * the one being appended to included; 0 keeps them all.
+     */
+    public Journal(File dir, int segment_size, long sync_ms, int retain_segments) {
+        this.dir = dir;
+        this.segment_size = Math.max(segment_size, MIN_SEGMENT_SIZE);
+        this.sync_nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, sync_ms));
+        this.retain_segments = retain_segments <= 0 ? Integer.MAX_VALUE : Math.max(2, retain_segments);
+
+        lock = new ReentrantLock();
+        segments = new ArrayList<Segment>();
+        retired = new ArrayList<Segment>();
+        mapped = new ArrayDeque<Segment>();
+        crc = new CRC32();
+        scratch = ByteBuffer.allocate(16);
+        next_seq = 1;
+    }
+
+    /**
+     * Recovers the existing segments in dir, or creates the first one,
+     * and starts the sync thread.
+     */
+    public void open() throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IOException("cannot create journal directory " + dir);
+
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(SUFFIX);
+            }
+        });
+
+        Arrays.sort(files);
+
+        for (File f : files) {
+            Segment s = new Segment(f, Long.parseLong(f.getName().substring(0, f.getName().length() - SUFFIX.length())));
+            s.read_first();
+
+            if (!segments.isEmpty() && s.first_seq <= segments.get(segments.size() - 1).first_seq)
+                throw new IOException("journal segment out of order: " + f);
+
+            segments.add(s);
+        }
+
+        if (segments.isEmpty()) {
+            active = create(next_seq);
+        } else {
+            active = segments.get(segments.size() - 1);
+            active.map(true);
+            active.scan();
+            active.wipe_tail();
+
+            next_seq = active.last_seq + 1;
+            last_time = active.last_time;
+
+            if (active.limit == 0 && segments.size() > 1) {
+                Segment prev = use(segments.get(segments.size() - 2));
+
+                next_seq = Math.max(next_seq, prev.last_seq + 1);
+                last_time = prev.last_time;
+            }
+        }
+
+        trim();
+
+        open = true;
+
+        syncer = new Thread(new Runnable() {
+            public void run() {
+                sync_loop();
+            }
+        }, "jedirc-journal");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Appends a line and returns its sequence number, or -1 if the line
+     * is empty, the journal is closed or the segment could not be rolled.
+     * A zero length marks the end of the records, so an empty line could
+     * not be told from unwritten space.
+     */
+    public long append(String text) {
+        byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        int size = HEADER_SIZE + payload.length;
+
+        if (payload.length == 0 || size > segment_size)
+            return -1;
+
+        lock.lock();
+
+        try {
+            if (!open)
+                return -1;
+
+            if (active.limit + size > active.capacity())
+                roll();
+
+            long seq = next_seq++;
+            long time = Math.max(System.currentTimeMillis(), last_time);
+
+            scratch.clear();
+            scratch.putLong(seq).putLong(time);
+
+            crc.reset();
+            crc.update(scratch.array(), 0, 16);
+            crc.update(payload, 0, payload.length);
+
+            active.put(seq, time, (int)crc.getValue(), payload);
+
+            last_time = time;
+            dirty = true;
+
+            return seq;
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            return -1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long next_seq() {
+        lock.lock();
+
+        try {
+            return next_seq;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Up to max entries starting at sequence number from.
+     */
+    public List<Entry> read(long from, int max) {
+        List<Entry> out = new ArrayList<Entry>(Math.min(max, 256));
+
+        lock.lock();
+
+        try {
+            int i = segment_for_seq(from);
+
+            for (; i < segments.size() && out.size() < max; i++) {
+                Segment s = use(segments.get(i));
+                s.read(s.index_for_seq(from), from, max, out);
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        } finally {
+            lock.unlock();
+        }
+
+        return out;
+    }
+
+    /**
+     * The sequence number of the first line appended at or after time_ms,
+     * or next_seq() if there is none.
+     */
+    public long seq_at(long time_ms) {
+        lock.lock();
+
+        try {
+            int lo = 0, hi = segments.size() - 1;
+
+            // last segment starting before time_ms
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+
+                if (!segments.get(mid).empty && segments.get(mid).first_time < time_ms)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+
+            for (int i = lo; i < segments.size(); i++) {
+                Segment s = use(segments.get(i));
+
+                long seq = s.seq_at(time_ms);
+
+                if (seq >= 0)
+                    return seq;
+            }
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+        } finally {
+            lock.unlock();
+        }
+
+        return next_seq();
+    }
+
+    /**
+     * Forces everything appended so far to disk.
+     */
+    public void sync() {
+        Segment s;
+        List<Segment> old;
+        boolean was_dirty;
+
+        lock.lock();
+
+        try {
+            s = active;
+            old = new ArrayList<Segment>(retired);
+            retired.clear();
+            was_dirty = dirty;
+            dirty = false;
+        } finally {
+            lock.unlock();
+        }
+
+        for (Segment r : old)
+            r.force();
+
+        if (was_dirty && s != null)
+            s.force();
+    }
+
+    public void close() {
+        lock.lock();
+
+        try {
+            if (!open)
+                return;
+
+            open = false;
+        } finally {
+            lock.unlock();
+        }
+
+        LockSupport.unpark(syncer);
+
+        try {
+            syncer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+
+        sync();
+
+        lock.lock();
+
+        try {
+            for (Segment s : segments)
+                s.unmap();
+
+            mapped.clear();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void sync_loop() {
+        while (open) {
+            LockSupport.parkNanos(this, sync_nanos);
+            sync();
+        }
+    }
+
+    private void roll() throws IOException {
+        retired.add(active);
+        mapped.addFirst(active);
+        active = create(next_seq);
+
+        unmap_extra();
+        trim();
+    }
+
+    /**
+     * Maps and indexes s if need be, and notes it as the older segment
+     * used most recently. Lock held.
+     */
+    private Segment use(Segment s) throws IOException {
+        s.map(false);
+        s.scan();
+
+        if (s != active) {
+            mapped.remove(s);
+            mapped.addFirst(s);
+            unmap_extra();
+        }
+
+        return s;
+    }
+
+    private void unmap_extra() {
+        while (mapped.size() > MAX_MAPPED)
+            mapped.removeLast().unmap();
+    }
+
+    /**
+     * Deletes the oldest segments beyond the retention limit. Lock held.
+     */
+    private void trim() {
+        while (segments.size() > retain_segments) {
+            Segment s = segments.remove(0);
+
+            mapped.remove(s);
+            retired.remove(s);
+            s.unmap();
+
+            if (!s.file.delete())
+                System.err.println("cannot delete journal segment " + s.file);
+        }
+    }
+
+    private Segment create(long first_seq) throws IOException {
+        Segment s = new Segment(new File(dir, String.format("%020d", first_seq) + SUFFIX), first_seq);
+
+        s.map(true);
+        s.scanned = true;
+        segments.add(s);
+
+        return s;
+    }
+
+    private int segment_for_seq(long seq) {
+        int lo = 0, hi = segments.size() - 1;
+
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+
+            if (segments.get(mid).first_seq <= seq)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        return lo;
+    }
+
+    /**
+     * One segment file. Older segments are only mapped and indexed once
+     * something reads them, and may be unmapped again; the index stays.
+     * The file itself is only open while being mapped.
+     */
+    private class Segment {
+        final File file;
+        final long first_seq;
+        long first_time;
+        long last_seq;
+        long last_time;
+        int limit;
+        boolean scanned;
+        boolean empty;
+        private volatile MappedByteBuffer map;
+        private long[] idx_seq;
+        private long[] idx_time;
+        private int[] idx_pos;
+        private int idx_count;
+        private int next_index_pos;
+
+        Segment(File file, long first_seq) {
+            this.file = file;
+            this.first_seq = first_seq;
+            this.last_seq = first_seq - 1;
+            this.empty = true;
+
+            idx_seq = new long[16];
+            idx_time = new long[16];
+            idx_pos = new int[16];
+        }
+
+        int capacity() {
+            return map.capacity();
+        }
+
+        void read_first() throws IOException {
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                if (raf.length() >= HEADER_SIZE) {
+                    empty = raf.readInt() <= 0;
+                    raf.seek(16);
+                    first_time = raf.readLong();
+                }
+            }
+        }
+
+        /**
+         * Maps the file, first growing it to the segment size if it is the
+         * one being appended to.
+         */
+        void map(boolean grow) throws IOException {
+            if (map != null)
+                return;
+
+            // the mapping outlives the file handle, so none is held open
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                if (grow && raf.length() < segment_size)
+                    raf.setLength(segment_size);
+
+                map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+            }
+        }
+
+        /**
+         * Walks the records from the start, stopping at the first one that
+         * is empty, torn or out of sequence.
+         */
+        void scan() {
+            if (scanned)
+                return;
+
+            int pos = 0;
+            long expect = first_seq;
+
+            idx_count = 0;
+            next_index_pos = 0;
+
+            while (pos + HEADER_SIZE <= map.capacity()) {
+                int len = map.getInt(pos);
+
+                if (len <= 0 || pos + HEADER_SIZE + len > map.capacity())
+                    break;
+
+                long seq = map.getLong(pos + 8);
+                long time = map.getLong(pos + 16);
+
+                if (seq != expect || map.getInt(pos + 4) != checksum(pos, len))
+                    break;
+
+                if (pos == 0)
+                    first_time = time;
+
+                index(seq, time, pos);
+
+                last_seq = seq;
+                last_time = time;
+                expect++;
+                pos += HEADER_SIZE + len;
+            }
+
+            limit = pos;
+            empty = pos == 0;
+            scanned = true;
+        }
+
+        private int checksum(int pos, int len) {
+            byte[] body = new byte[16 + len];
+            ByteBuffer dup = map.duplicate();
+
+            dup.position(pos + 8);
+            dup.get(body);
+
+            crc.reset();
+            crc.update(body, 0, body.length);
+
+            return (int)crc.getValue();
+        }
+
+        /**
+         * Zeroes whatever follows the last good record, so bytes from a
+         * torn write can never be mistaken for records later.
+         */
+        void wipe_tail() {
+            byte[] zeros = new byte[4096];
+            ByteBuffer dup = map.duplicate();
+
+            dup.position(limit);
+
+            while (dup.hasRemaining())
+                dup.put(zeros, 0, Math.min(zeros.length, dup.remaining()));
+        }
+
+        void put(long seq, long time, int checksum, byte[] payload) {
+            int pos = limit;
+
+            map.putInt(pos + 4, checksum);
+            map.putLong(pos + 8, seq);
+            map.putLong(pos + 16, time);
+
+            ByteBuffer dup = map.duplicate();
+            dup.position(pos + HEADER_SIZE);
+            dup.put(payload);
+
+            // length last: a record is only visible to recovery once complete
+            map.putInt(pos, payload.length);
+
+            if (pos == 0)
+                first_time = time;
+
+            index(seq, time, pos);
+
+            last_seq = seq;
+            last_time = time;
+            limit = pos + HEADER_SIZE + payload.length;
+            empty = false;
+        }
+
+        private void index(long seq, long time, int pos) {
+            if (pos < next_index_pos)
+                return;
+
+            if (idx_count == idx_seq.length) {
+                idx_seq = Arrays.copyOf(idx_seq, idx_count * 2);
+                idx_time = Arrays.copyOf(idx_time, idx_count * 2);
+                idx_pos = Arrays.copyOf(idx_pos, idx_count * 2);
+            }
+
+            idx_seq[idx_count] = seq;
+            idx_time[idx_count] = time;
+            idx_pos[idx_count] = pos;
+            idx_count++;
+
+            next_index_pos = pos + INDEX_INTERVAL;
+        }
+
+        /**
+         * Offset of the last indexed record at or before seq.
+         */
+        int index_for_seq(long seq) {
+            int lo = 0, hi = idx_count - 1;
+
+            if (hi < 0 || idx_seq[0] >= seq)
+                return 0;
+
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+
+                if (idx_seq[mid] <= seq)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+
+            return idx_pos[lo];
+        }
+
+        long seq_at(long time_ms) {
+            if (idx_count == 0 || last_time < time_ms)
+                return -1;
+
+            int lo = 0, hi = idx_count - 1;
+
+            while (lo < hi) {
+                int mid = (lo + hi + 1) >>> 1;
+
+                if (idx_time[mid] < time_ms)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+
+            int pos = idx_pos[lo];
+
+            while (pos < limit) {
+                int len = map.getInt(pos);
+
+                if (map.getLong(pos + 16) >= time_ms)
+                    return map.getLong(pos + 8);
+
+                pos += HEADER_SIZE + len;
+            }
+
+            return -1;
+        }
+
+        void read(int pos, long from, int max, List<Entry> out) {
+            ByteBuffer dup = map.duplicate();
+
+            while (pos < limit && out.size() < max) {
+                int len = map.getInt(pos);
+                long seq = map.getLong(pos + 8);
+
+                if (seq >= from) {
+                    byte[] text = new byte[len];
+
+                    dup.position(pos + HEADER_SIZE);
+                    dup.get(text);
+
+                    out.add(new Entry(seq, map.getLong(pos + 16), new String(text, StandardCharsets.UTF_8)));
+                }
+
+                pos += HEADER_SIZE + len;
+            }
+        }
+
+        void force() {
+            MappedByteBuffer m = map;
+
+            if (m != null)
+                m.force();
+        }
+
+        /**
+         * Forces and drops the mapping; the address space goes back once
+         * the buffer is collected.
+         */
+        void unmap() {
+            force();
+            map = null;
+        }
+    }
+}
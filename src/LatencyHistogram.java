@@ -0,0 +1,108 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * LatencyHistogram
+ *
+ * Lock-free log-linear histogram of non-negative longs, typically
+ * nanoseconds. Each power of two is split into 2^SUB_BITS equal buckets,
+ * so any recorded value is reported within about 3% of its true value.
+ * record() is a couple of atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int BUCKETS = (64 - SUB_BITS + 1) * SUB;
+
+    private final AtomicLongArray counts;
+    private final AtomicLong total;
+    private final AtomicLong sum;
+    private final AtomicLong max;
+
+    public LatencyHistogram() {
+        counts = new AtomicLongArray(BUCKETS);
+        total = new AtomicLong();
+        sum = new AtomicLong();
+        max = new AtomicLong();
+    }
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+
+        counts.incrementAndGet(index(value));
+        total.incrementAndGet();
+        sum.addAndGet(value);
+
+        long m;
+
+        while (value > (m = max.get()) && !max.compareAndSet(m, value))
+            ;
+    }
+
+    public long count() {
+        return total.get();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    public double mean() {
+        long n = total.get();
+
+        return n == 0 ? 0 : (double)sum.get() / n;
+    }
+
+    /**
+     * The value below which the given fraction (0..1) of recordings fall,
+     * rounded up to the top of its bucket.
+     */
+    public long percentile(double fraction) {
+        long n = total.get();
+
+        if (n == 0)
+            return 0;
+
+        long rank = Math.max(1, (long)Math.ceil(fraction * n));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+
+            if (seen >= rank)
+                return Math.min(upper_bound(i), max.get());
+        }
+
+        return max.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            counts.set(i, 0);
+
+        total.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    static int index(long value) {
+        if (value < SUB)
+            return (int)value;
+
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int mantissa = (int)(value >>> (exp - SUB_BITS)) & (SUB - 1);
+
+        return (exp - SUB_BITS + 1) * SUB + mantissa;
+    }
+
+    static long upper_bound(int index) {
+        if (index < SUB)
+            return index;
+
+        int exp = index / SUB + SUB_BITS - 1;
+        long mantissa = index % SUB;
+
+        return ((SUB + mantissa + 1) << (exp - SUB_BITS)) - 1;
+    }
+}
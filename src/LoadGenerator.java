@@ -0,0 +1,550 @@
+import java.io.*;
+import java.lang.management.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LoadGenerator
+ *
+ * Headless load test for a JedIRC server. Opens thousands of simulated
+ * clients over a few selector threads, each doing the real handshake and
+ * then chatting in the default channel at a fixed rate. Every line
+ * carries its send time, so each delivery to each recipient is a latency
+ * sample.
+ *
+ *     java LoadGenerator [key=value ...]
+ *
+ *     host=localhost port=31337   server to load
+ *     clients=1000                simulated users
+ *     join_rate=500               connections opened per second
+ *     msg_rate=0.5                lines per second per user
+ *     payload=64                  bytes per line
+ *     duration=30                 seconds of chatting after the first join
+ *     threads=2                   generator selector threads
+ *     embedded=false              run a ChatServer in this JVM and report
+ *                                 its CPU and heap
+ */
+public class LoadGenerator {
+    private static final long DRAIN_NANOS = TimeUnit.SECONDS.toNanos(2);
+    private static final long REPORT_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    private final String host;
+    private final int port;
+    private final int clients;
+    private final double join_rate;
+    private final double msg_rate;
+    private final int payload;
+    private final int duration;
+    private final int threads;
+    private final boolean embedded;
+
+    private final AtomicLong connected = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong sent = new AtomicLong();
+    private final AtomicLong received = new AtomicLong();
+    private final AtomicLong bytes_out = new AtomicLong();
+    private final AtomicLong bytes_in = new AtomicLong();
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    private long start;
+    private long stop_sending;
+    private long peak_heap;
+
+    public LoadGenerator(Map<String, String> opts) {
+        host = option(opts, "host", "localhost");
+        port = Integer.parseInt(option(opts, "port", "31337"));
+        clients = Integer.parseInt(option(opts, "clients", "1000"));
+        join_rate = Double.parseDouble(option(opts, "join_rate", "500"));
+        msg_rate = Double.parseDouble(option(opts, "msg_rate", "0.5"));
+        payload = Integer.parseInt(option(opts, "payload", "64"));
+        duration = Integer.parseInt(option(opts, "duration", "30"));
+        threads = Integer.parseInt(option(opts, "threads", "2"));
+        embedded = Boolean.parseBoolean(option(opts, "embedded", "false"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> opts = new HashMap<String, String>();
+
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+
+            if (eq < 0) {
+                System.err.println("usage:\tjava LoadGenerator [key=value ...]");
+                return;
+            }
+
+            opts.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+
+        new LoadGenerator(opts).run();
+    }
+
+    private static String option(Map<String, String> opts, String key, String fallback) {
+        String value = opts.get(key);
+
+        return value == null ? fallback : value;
+    }
+
+    public void run() throws Exception {
+        ChatServer server = null;
+
+        if (embedded) {
+            server = new ChatServer(port);
+            final ChatServer s = server;
+
+            Thread acceptor = new Thread(new Runnable() {
+                public void run() {
+                    s.start();
+                }
+            }, "jedirc-acceptor");
+            acceptor.setDaemon(true);
+            acceptor.start();
+
+            Thread.sleep(500);
+        }
+
+        System.out.println("load: " + clients + " clients -> " + host + ":" + port
+                + ", join " + join_rate + "/s, " + msg_rate + " msg/s each, "
+                + payload + " byte lines, " + duration + "s");
+
+        start = System.nanoTime();
+        stop_sending = start + TimeUnit.SECONDS.toNanos(duration);
+
+        long server_cpu = server_cpu_nanos();
+        long server_alloc = server_alloc_bytes();
+        Worker[] workers = new Worker[Math.max(1, threads)];
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i, workers.length);
+            workers[i].start();
+        }
+
+        long next_report = start + REPORT_NANOS;
+        long last_sent = 0, last_received = 0, last = start;
+
+        while (System.nanoTime() - (stop_sending + DRAIN_NANOS) < 0) {
+            Thread.sleep(100);
+            sample_heap();
+
+            long now = System.nanoTime();
+
+            if (now - next_report >= 0) {
+                double secs = (now - last) / 1e9;
+                long s = sent.get(), r = received.get();
+
+                System.out.printf("%5.0fs  connected %d  sent %.0f/s  delivered %.0f/s  p99 %s%n",
+                        (now - start) / 1e9, connected.get(), (s - last_sent) / secs,
+                        (r - last_received) / secs, micros(latency.percentile(0.99)));
+
+                last_sent = s;
+                last_received = r;
+                last = now;
+                next_report += REPORT_NANOS;
+            }
+        }
+
+        long elapsed = System.nanoTime() - start;
+        server_cpu = server_cpu_nanos() - server_cpu;
+        server_alloc = server_alloc_bytes() - server_alloc;
+
+        for (Worker w : workers)
+            w.shutdown();
+        for (Worker w : workers)
+            w.join();
+
+        report(elapsed, server_cpu, server_alloc);
+
+        if (server != null)
+            server.stop();
+    }
+
+    private void report(long elapsed, long server_cpu, long server_alloc) {
+        double secs = TimeUnit.SECONDS.toNanos(duration) / 1e9;
+
+        System.out.println();
+        System.out.printf("clients    %d connected, %d failed%n", connected.get(), failed.get());
+        System.out.printf("sent       %d lines (%.1f/s)%n", sent.get(), sent.get() / secs);
+        System.out.printf("delivered  %d lines (%.1f/s)%n", received.get(), received.get() / secs);
+        System.out.printf("bytes      %d out, %d in%n", bytes_out.get(), bytes_in.get());
+        System.out.printf("latency    p50 %s  p99 %s  p999 %s  max %s  (%d samples)%n",
+                micros(latency.percentile(0.50)), micros(latency.percentile(0.99)),
+                micros(latency.percentile(0.999)), micros(latency.max()), latency.count());
+
+        if (embedded) {
+            System.out.printf("server     cpu %.2f cores avg, heap peak %d MiB (whole JVM)%n",
+                    (double)server_cpu / elapsed, peak_heap >> 20);
+            System.out.printf("           allocated %d MiB, %.0f bytes per delivered line%n",
+                    server_alloc >> 20, (double)server_alloc / Math.max(1, received.get()));
+        } else
+            System.out.println("server     cpu/heap only measured with embedded=true");
+    }
+
+    private static String micros(long nanos) {
+        return String.format("%.0fus", nanos / 1e3);
+    }
+
+    /**
+     * CPU time of the embedded server's platform threads, all of which
+     * are named jedirc-*. Virtual threads are not visible here.
+     */
+    private long server_cpu_nanos() {
+        if (!embedded)
+            return 0;
+
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+        long total = 0;
+
+        for (ThreadInfo info : mx.getThreadInfo(mx.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("jedirc-"))
+                total += Math.max(0, mx.getThreadCpuTime(info.getThreadId()));
+        }
+
+        return total;
+    }
+
+    /**
+     * Heap allocated so far by the same threads, where the JVM can tell.
+     */
+    private long server_alloc_bytes() {
+        ThreadMXBean mx = ManagementFactory.getThreadMXBean();
+
+        if (!embedded || !(mx instanceof com.sun.management.ThreadMXBean))
+            return 0;
+
+        com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean)mx;
+        long total = 0;
+
+        for (ThreadInfo info : mx.getThreadInfo(mx.getAllThreadIds())) {
+            if (info != null && info.getThreadName().startsWith("jedirc-"))
+                total += Math.max(0, hotspot.getThreadAllocatedBytes(info.getThreadId()));
+        }
+
+        return total;
+    }
+
+    private void sample_heap() {
+        long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+        if (used > peak_heap)
+            peak_heap = used;
+    }
+
+    /**
+     * One selector thread driving every threads'th simulated client.
+     */
+    class Worker extends Thread {
+        private final Selector selector;
+        private final ByteBuffer read_buffer;
+        private final PriorityQueue<SimClient> sends;
+        private final int first;
+        private final int stride;
+        private int next_join;
+        private volatile boolean stay_alive;
+
+        Worker(int index, int stride) throws IOException {
+            super("load-worker-" + index);
+
+            selector = Selector.open();
+            read_buffer = ByteBuffer.allocateDirect(64 * 1024);
+            sends = new PriorityQueue<SimClient>();
+            first = index;
+            this.stride = stride;
+            next_join = index;
+            stay_alive = true;
+
+            setDaemon(true);
+        }
+
+        void shutdown() {
+            stay_alive = false;
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (stay_alive) {
+                    long now = System.nanoTime();
+
+                    join_due(now);
+
+                    if (now - stop_sending < 0)
+                        send_due(now);
+
+                    long wait = next_event(now);
+
+                    if (wait <= 0)
+                        selector.selectNow();
+                    else
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+
+                        SimClient c = (SimClient)key.attachment();
+
+                        if (key.isValid() && key.isConnectable())
+                            c.on_connect();
+                        if (key.isValid() && key.isWritable())
+                            c.flush();
+                        if (key.isValid() && key.isReadable())
+                            c.on_read(read_buffer);
+                    }
+                }
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
+
+            for (SelectionKey key : selector.keys())
+                ((SimClient)key.attachment()).close();
+        }
+
+        private long join_at(int index) {
+            return start + (long)(index / join_rate * 1e9);
+        }
+
+        private void join_due(long now) {
+            while (next_join < clients && now - join_at(next_join) >= 0) {
+                new SimClient(this, next_join).connect();
+                next_join += stride;
+            }
+        }
+
+        private void send_due(long now) {
+            SimClient c;
+
+            while ((c = sends.peek()) != null && now - c.next_send >= 0) {
+                sends.poll();
+                c.send_line(now);
+                c.next_send += (long)(1e9 / msg_rate);
+                sends.add(c);
+            }
+        }
+
+        private long next_event(long now) {
+            long wait = 100000000L;
+
+            if (next_join < clients)
+                wait = Math.min(wait, join_at(next_join) - now);
+            if (!sends.isEmpty() && now - stop_sending < 0)
+                wait = Math.min(wait, sends.peek().next_send - now);
+
+            return wait;
+        }
+    }
+
+    class SimClient implements Comparable<SimClient> {
+        private final Worker worker;
+        private final int index;
+        private final FrameDecoder decoder;
+        private final ArrayDeque<ByteBuffer> out;
+        private SocketChannel ch;
+        private SelectionKey key;
+        private ByteBuffer in;
+        private long joined_at;
+        long next_send;
+
+        SimClient(Worker worker, int index) {
+            this.worker = worker;
+            this.index = index;
+
+            decoder = new FrameDecoder();
+            out = new ArrayDeque<ByteBuffer>();
+            in = ByteBuffer.allocate(4096);
+        }
+
+        public int compareTo(SimClient other) {
+            return Long.signum(next_send - other.next_send);
+        }
+
+        void connect() {
+            try {
+                ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+
+                if (ch.connect(new InetSocketAddress(host, port))) {
+                    key = ch.register(worker.selector, 0, this);
+                    on_connect();
+                } else
+                    key = ch.register(worker.selector, SelectionKey.OP_CONNECT, this);
+            } catch (IOException ioe) {
+                failed.incrementAndGet();
+                close();
+            }
+        }
+
+        void on_connect() {
+            try {
+                ch.finishConnect();
+            } catch (IOException ioe) {
+                failed.incrementAndGet();
+                close();
+                return;
+            }
+
+            connected.incrementAndGet();
+            key.interestOps(SelectionKey.OP_READ);
+
+            joined_at = System.nanoTime();
+            write(FrameEncoder.preamble());
+            write(frame(Message.USER, "load" + index));
+
+            if (msg_rate > 0) {
+                long interval = (long)(1e9 / msg_rate);
+
+                next_send = System.nanoTime() + (long)(Math.random() * interval);
+                worker.sends.add(this);
+            }
+        }
+
+        void send_line(long now) {
+            if (ch == null || !ch.isOpen())
+                return;
+
+            StringBuilder line = new StringBuilder(payload + 24);
+            line.append("t=").append(now).append(' ');
+
+            while (line.length() < payload)
+                line.append('x');
+
+            write(frame(Message.MESSAGE, line.toString()));
+            sent.incrementAndGet();
+        }
+
+        private ByteBuffer frame(int type, String text) {
+            try {
+                return FrameEncoder.encode(new Message(type, text));
+            } catch (IOException ioe) {
+                throw new IllegalArgumentException(ioe.getMessage());
+            }
+        }
+
+        private void write(ByteBuffer frame) {
+            bytes_out.addAndGet(frame.remaining());
+            out.add(frame);
+            flush();
+        }
+
+        void flush() {
+            try {
+                ByteBuffer head;
+
+                while ((head = out.peek()) != null) {
+                    ch.write(head);
+
+                    if (head.hasRemaining())
+                        break;
+
+                    out.poll();
+                }
+
+                if (key.isValid()) {
+                    key.interestOps(out.isEmpty() ? SelectionKey.OP_READ
+                            : SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (IOException ioe) {
+                close();
+            }
+        }
+
+        void on_read(ByteBuffer buf) {
+            int n;
+
+            buf.clear();
+
+            try {
+                n = ch.read(buf);
+            } catch (IOException ioe) {
+                n = -1;
+            }
+
+            if (n < 0) {
+                close();
+                return;
+            }
+
+            bytes_in.addAndGet(n);
+            buf.flip();
+
+            if (in.remaining() < buf.remaining()) {
+                ByteBuffer grown = ByteBuffer.allocate(Math.max(in.capacity() * 2, in.position() + buf.remaining()));
+                in.flip();
+                grown.put(in);
+                in = grown;
+            }
+
+            in.put(buf);
+            in.flip();
+
+            try {
+                Message m;
+
+                while ((m = decoder.decode(in)) != null) {
+                    if (m.get_type() == Message.MESSAGE) {
+                        long sent_at = stamp(m.get_message());
+
+                        // scrollback and resume catch-up, not lines delivered live
+                        if (sent_at != -1 && sent_at - joined_at < 0)
+                            continue;
+
+                        received.incrementAndGet();
+
+                        if (sent_at != -1)
+                            latency.record(System.nanoTime() - sent_at);
+                    } else if (m.get_type() == Message.PING)
+                        write(frame(Message.PONG, m.get_message()));
+                }
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                close();
+                return;
+            }
+
+            in.compact();
+        }
+
+        /**
+         * The send time a simulated client stamped on line, or -1 if the
+         * line carries none.
+         */
+        private long stamp(String line) {
+            int at = line.indexOf(" t=");
+
+            if (at < 0)
+                return -1;
+
+            long sent_at = 0;
+
+            for (int i = at + 3; i < line.length(); i++) {
+                char ch = line.charAt(i);
+
+                if (ch < '0' || ch > '9')
+                    break;
+
+                sent_at = sent_at * 10 + (ch - '0');
+            }
+
+            return sent_at;
+        }
+
+        void close() {
+            try {
+                if (key != null)
+                    key.cancel();
+                if (ch != null)
+                    ch.close();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+            }
+        }
+    }
+}
@@ -5,7 +5,40 @@ public class Message implements Serializable {
     private String message;
     private int type;
 
-    public static final int MESSAGE = 0, DISCONNECT = 1;
+    public static final int MESSAGE = 0, DISCONNECT = 1, USER = 2, JOIN = 3, PART = 4, PING = 5, PONG = 6;
+
+    /**
+     * Roster frames. ROSTER replaces the client's user list with the
+     * newline separated nicks it carries, USER_JOINED adds one or more,
+     * USER_LEFT removes one and USER_RENAMED carries "old new". A client
+     * sends an empty ROSTER to ask for a fresh one and NICK to rename.
+     *
+     * From the server every roster frame starts with a sequence number
+     * line. Each change bumps it by one, so a client that sees a number
+     * skipped knows it missed a change and asks for a fresh ROSTER. A
+     * ROSTER carries the number of the last change it includes, and a
+     * USER_JOINED with that same number continues it rather than being
+     * a change of its own.
+     */
+    public static final int ROSTER = 7, USER_JOINED = 8, USER_LEFT = 9, USER_RENAMED = 10, NICK = 11;
+
+    /**
+     * Sent by a server shutting down gracefully as the last frame before
+     * it closes: a ResumeToken (empty for a connection not yet logged
+     * in), a newline, and the number of milliseconds over which clients
+     * should spread their return. A client comes back with the token in
+     * a RESUME frame of its own, in place of USER.
+     */
+    public static final int RESUME = 12;
+
+    /**
+     * Compression negotiation, sent before USER or RESUME. From a client,
+     * the modes it offers, best first, and its dictionary's id, such as
+     * "deflate-stream deflate dict=1f2e3d4c"; the server answers with the
+     * mode it picked and the dictionary if shared, or empty for none. See
+     * Compression.
+     */
+    public static final int COMPRESS = 13;
 
     public Message(int type, String message) {
         this.type = type;
@@ -0,0 +1,313 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * NioConnection
+ *
+ * A non-blocking connection owned by one EventLoop. Reads and writes run
+ * on that loop's thread; other threads only queue frames. The frame
+ * being written is moved out of the queue first, so a DROP_OLDEST
+ * eviction can never cut a frame in half on the wire.
+ *
+ * Queued frames are not written one by one: the loop flushes a dirty
+ * connection once per pass (or after the flush delay), copying as many
+ * frames as fit into a pooled write buffer and writing that in one call.
+ * Idle connections hold no pooled buffers at all.
+ *
+ * Logging a new user in is handed to the server's handshake workers, so
+ * a storm of logins never holds up the loop's other connections.
+ */
+public class NioConnection extends Connection {
+    final EventLoop loop;
+    SelectionKey key;
+    private ByteBuffer pending;
+    private ByteBuffer out;
+    private final AtomicBoolean flush_scheduled;
+    private boolean read_paused;
+    private boolean handshaking;
+    private Runnable resume;
+
+    NioConnection(ChatServer server, SocketChannel sock, int id, EventLoop loop) {
+        super(server, sock, id);
+        this.loop = loop;
+
+        flush_scheduled = new AtomicBoolean();
+    }
+
+    void on_readable() {
+        ByteBuffer buf = loop.read_buffer();
+        int n;
+
+        buf.clear();
+
+        try {
+            n = sock.read(buf);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            n = -1;
+        }
+
+        if (n < 0) {
+            drop();
+            return;
+        }
+
+        server.metrics().read(n);
+        touch();
+        buf.flip();
+
+        if (pending != null) {
+            pending = ensure_capacity(pending, buf.remaining());
+            pending.put(buf);
+            pending.flip();
+            buf = pending;
+        }
+
+        dispatch(buf);
+    }
+
+    private void dispatch(ByteBuffer buf) {
+        try {
+            read_frames(buf);
+        } catch (IOException e) {
+            System.err.println(e.getMessage());
+            drop();
+            return;
+        }
+
+        if (sock.isOpen())
+            keep_partial(buf);
+    }
+
+    /**
+     * Holds on to the bytes of a partially received frame. Idle
+     * connections keep no read buffer of their own at all.
+     */
+    private void keep_partial(ByteBuffer buf) {
+        if (buf == pending) {
+            pending.compact();
+
+            if (pending.position() == 0) {
+                BufferPool.release(pending);
+                pending = null;
+            }
+        } else if (buf.hasRemaining()) {
+            pending = BufferPool.acquire(Math.max(buf.remaining() * 2, 1024));
+            pending.put(buf);
+        }
+    }
+
+    private static ByteBuffer ensure_capacity(ByteBuffer buf, int needed) {
+        if (buf.remaining() >= needed)
+            return buf;
+
+        ByteBuffer grown = BufferPool.acquire(Math.max(buf.capacity() * 2, buf.position() + needed));
+        buf.flip();
+        grown.put(buf);
+        BufferPool.release(buf);
+
+        return grown;
+    }
+
+    void on_writable() {
+        flush();
+    }
+
+    private void flush() {
+        if (key == null || !key.isValid())
+            return;
+
+        try {
+            boolean partial = false;
+
+            while (!partial && (out != null || has_queued())) {
+                if (out == null)
+                    out = BufferPool.acquire(ServerConfig.WRITE_BUFFER_SIZE);
+
+                fill(out);
+
+                if (out.position() == 0)
+                    break;
+
+                out.flip();
+                server.metrics().wrote(sock.write(out));
+                partial = out.hasRemaining();
+                out.compact();
+            }
+
+            if (out != null && out.position() == 0) {
+                BufferPool.release(out);
+                out = null;
+            }
+
+            boolean drained = out == null && !has_queued();
+            int read = paused() ? 0 : SelectionKey.OP_READ;
+
+            if (drained && closing)
+                drop();
+            else if (drained)
+                key.interestOps(read);
+            else
+                key.interestOps(read | SelectionKey.OP_WRITE);
+        } catch (IOException ioe) {
+            System.err.println(ioe.getMessage());
+            drop();
+        }
+    }
+
+    /**
+     * Called by the loop when this connection's turn to flush comes.
+     */
+    void flush_now() {
+        flush_scheduled.set(false);
+        flush();
+    }
+
+    void schedule_flush() {
+        if (!flush_scheduled.compareAndSet(false, true))
+            return;
+
+        if (on_writer_thread()) {
+            loop.flush_later(this);
+        } else {
+            loop.execute(new Runnable() {
+                public void run() {
+                    loop.flush_later(NioConnection.this);
+                }
+            });
+        }
+    }
+
+    boolean on_writer_thread() {
+        return Thread.currentThread() == loop;
+    }
+
+    /**
+     * Takes OP_READ off the key and has the timer put it back. Frames
+     * already read but not yet handled wait in the pending buffer.
+     */
+    void pause_reading(long nanos) {
+        if (read_paused || key == null || !key.isValid())
+            return;
+
+        read_paused = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        if (resume == null) {
+            final Runnable on_loop = new Runnable() {
+                public void run() {
+                    resume_reading();
+                }
+            };
+
+            resume = new Runnable() {
+                public void run() {
+                    loop.execute(on_loop);
+                }
+            };
+        }
+
+        server.timers().schedule(resume, Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos)));
+    }
+
+    /**
+     * Stops reading while a handshake worker runs login, so frames sent
+     * right behind USER wait for it; the loop carries on reading once it
+     * is done. If no worker will take it, login runs here after all.
+     */
+    @Override
+    void handshake(final Runnable login) {
+        handshaking = true;
+
+        if (key != null && key.isValid())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+
+        final Runnable on_loop = new Runnable() {
+            public void run() {
+                handshaking = false;
+                continue_reading();
+            }
+        };
+
+        Runnable task = new Runnable() {
+            public void run() {
+                try {
+                    login.run();
+                } finally {
+                    loop.execute(on_loop);
+                }
+            }
+        };
+
+        if (!server.handshake(task))
+            task.run();
+    }
+
+    boolean paused() {
+        return read_paused || handshaking;
+    }
+
+    private void resume_reading() {
+        read_paused = false;
+        continue_reading();
+    }
+
+    /**
+     * Handles frames left over from before a pause and takes up reading
+     * again, unless something else still holds it back.
+     */
+    private void continue_reading() {
+        if (paused() || key == null || !key.isValid())
+            return;
+
+        if (pending != null) {
+            pending.flip();
+            dispatch(pending);
+        }
+
+        if (!paused() && key.isValid())
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+    }
+
+    /**
+     * Returns the pooled buffers and queued frames, and frees the codecs'
+     * native memory. They belong to the loop, so another thread closing
+     * the connection leaves this to it.
+     */
+    private void release_buffers() {
+        decoder.end();
+
+        if (pending != null) {
+            BufferPool.release(pending);
+            pending = null;
+        }
+
+        if (out != null) {
+            BufferPool.release(out);
+            out = null;
+        }
+
+        discard_queued();
+    }
+
+    @Override
+    void close() {
+        if (key != null)
+            key.cancel();
+
+        super.close();
+
+        if (on_writer_thread()) {
+            release_buffers();
+        } else {
+            loop.execute(new Runnable() {
+                public void run() {
+                    release_buffers();
+                }
+            });
+        }
+    }
+}
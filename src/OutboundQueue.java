@@ -0,0 +1,169 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * OutboundQueue
+ *
+ * Bounded, lock-free queue of encoded frames waiting to be written to one
+ * connection. Any thread may offer(); the connection's writer polls.
+ * The queue owns one reference to each frame in it. What happens when a
+ * consumer falls behind is decided by the server wide slow-consumer
+ * Policy. Pinned control frames are outside the bound and are never the
+ * ones dropped: the protocol breaks without them.
+ */
+public class OutboundQueue {
+    public enum Policy {
+        /** discard the oldest queued frame to make room */
+        DROP_OLDEST,
+        /** give up on the connection */
+        DROP_CONNECTION,
+        /** wait up to the block deadline for room, then drop the connection */
+        BLOCK
+    }
+
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private static final AtomicLong dropped_frames = new AtomicLong();
+    private static final AtomicLong dropped_connections = new AtomicLong();
+    private static final AtomicLong blocked = new AtomicLong();
+    private static final AtomicLong block_timeouts = new AtomicLong();
+
+    private final ConcurrentLinkedQueue<Frame> frames;
+    private final AtomicInteger size;
+    private final int capacity;
+    private final Policy policy;
+    private final long block_nanos;
+
+    public OutboundQueue() {
+        this(ServerConfig.OUTBOUND_CAPACITY, ServerConfig.OUTBOUND_POLICY, ServerConfig.OUTBOUND_BLOCK_MS);
+    }
+
+    public OutboundQueue(int capacity, Policy policy, long block_ms) {
+        this.capacity = capacity;
+        this.policy = policy;
+        this.block_nanos = TimeUnit.MILLISECONDS.toNanos(block_ms);
+
+        frames = new ConcurrentLinkedQueue<Frame>();
+        size = new AtomicInteger();
+    }
+
+    /**
+     * Queues a frame, applying the slow-consumer policy if the queue is
+     * full. Returns false if the connection should be dropped instead,
+     * in which case the caller keeps its reference to frame.
+     * may_block must be false on the consumer's own thread, since waiting
+     * there for room could never succeed.
+     */
+    public boolean offer(Frame frame, boolean may_block) {
+        long deadline = 0;
+
+        if (frame.pinned) {
+            frames.add(frame);
+            return true;
+        }
+
+        while (true) {
+            if (size.incrementAndGet() <= capacity) {
+                frames.add(frame);
+                return true;
+            }
+
+            size.decrementAndGet();
+
+            switch (policy) {
+                case DROP_OLDEST:
+                    Frame oldest = evict_oldest();
+
+                    if (oldest != null) {
+                        oldest.release();
+                        dropped_frames.incrementAndGet();
+                    }
+                break;
+
+                case BLOCK:
+                    if (may_block) {
+                        if (deadline == 0) {
+                            deadline = System.nanoTime() + block_nanos;
+                            blocked.incrementAndGet();
+                        }
+
+                        if (System.nanoTime() - deadline < 0) {
+                            LockSupport.parkNanos(BLOCK_PARK_NANOS);
+                            break;
+                        }
+                    }
+
+                    block_timeouts.incrementAndGet();
+                    dropped_connections.incrementAndGet();
+                return false;
+
+                case DROP_CONNECTION:
+                default:
+                    dropped_connections.incrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    public Frame poll() {
+        Frame frame = frames.poll();
+
+        if (frame != null && !frame.pinned)
+            size.decrementAndGet();
+
+        return frame;
+    }
+
+    /**
+     * Takes out the oldest frame that is not pinned. Pinned frames are
+     * few and sit near the head, so the walk is short; a frame the writer
+     * polls meanwhile just moves it on to the next.
+     */
+    private Frame evict_oldest() {
+        for (Frame frame : frames) {
+            if (!frame.pinned && frames.remove(frame)) {
+                size.decrementAndGet();
+                return frame;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Releases every queued frame. Safe on any thread.
+     */
+    public void clear() {
+        Frame frame;
+
+        while ((frame = poll()) != null)
+            frame.release();
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    public boolean is_empty() {
+        return frames.isEmpty();
+    }
+
+    public static long dropped_frames() {
+        return dropped_frames.get();
+    }
+
+    public static long dropped_connections() {
+        return dropped_connections.get();
+    }
+
+    public static long blocked() {
+        return blocked.get();
+    }
+
+    public static long block_timeouts() {
+        return block_timeouts.get();
+    }
+}
@@ -0,0 +1,263 @@
+import java.net.InetAddress;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RateLimiter
+ *
+ * Token bucket limits on what one ChatServer takes in: inbound frames per
+ * connection, per remote address and in total, and accepted connections
+ * per remote address and in total. A connection's buckets are looked up
+ * once when it is accepted, so checking a frame is a few CASes on
+ * TokenBucket and allocates nothing. Each limit has its own action for
+ * when it is exceeded and counts how often that happened.
+ *
+ * A frame or accept is checked against the narrowest limit first; the
+ * first one that refuses decides what happens. Addresses are forgotten
+ * by sweep() once they have no connections and their buckets are full.
+ */
+public class RateLimiter {
+    public enum Action {
+        /** let it through, but stop reading from the connection (or hold the accept) until the debt is paid */
+        DELAY,
+        /** silently discard the frame, or close the new socket */
+        DROP,
+        /** tell the peer it is being cut off and close it */
+        DISCONNECT
+    }
+
+    /** verdicts other than "go ahead after this many nanoseconds" */
+    static final long DROPPED = -1;
+    static final long DISCONNECTED = -2;
+
+    /**
+     * One configured limit: rate per second, burst and action, read from
+     * jedirc.limit.NAME.rate, .burst and .action. A rate of 0 disables it.
+     */
+    public static final class Limit {
+        final String name;
+        final double rate;
+        final int burst;
+        final Action action;
+
+        Limit(String name, double rate, int burst, Action action) {
+            this.name = name;
+            this.rate = rate;
+            this.burst = burst;
+            this.action = action;
+        }
+
+        static Limit configure(String name, double rate, int burst, Action action) {
+            String prefix = "jedirc.limit." + name + ".";
+
+            return new Limit(name,
+                    Double.parseDouble(System.getProperty(prefix + "rate", Double.toString(rate))),
+                    Integer.getInteger(prefix + "burst", burst),
+                    Action.valueOf(System.getProperty(prefix + "action", action.name()).toUpperCase()));
+        }
+
+        boolean enabled() {
+            return rate > 0;
+        }
+
+        TokenBucket bucket() {
+            return enabled() ? new TokenBucket(rate, burst) : null;
+        }
+    }
+
+    /**
+     * The shared buckets of one remote address.
+     */
+    static final class Peer {
+        final TokenBucket messages;
+        final TokenBucket accepts;
+        final AtomicInteger connections;
+
+        Peer() {
+            messages = ServerConfig.IP_MESSAGES.bucket();
+            accepts = ServerConfig.IP_ACCEPTS.bucket();
+            connections = new AtomicInteger();
+        }
+
+        boolean idle() {
+            return connections.get() == 0
+                    && (messages == null || messages.is_full())
+                    && (accepts == null || accepts.is_full());
+        }
+    }
+
+    private final ConcurrentHashMap<InetAddress, Peer> peers;
+    private final boolean per_address;
+    private final TokenBucket global_messages;
+    private final TokenBucket global_accepts;
+
+    private final Counter conn_messages_exceeded;
+    private final Counter ip_messages_exceeded;
+    private final Counter global_messages_exceeded;
+    private final Counter ip_accepts_exceeded;
+    private final Counter global_accepts_exceeded;
+
+    public RateLimiter() {
+        peers = new ConcurrentHashMap<InetAddress, Peer>();
+        per_address = ServerConfig.IP_MESSAGES.enabled() || ServerConfig.IP_ACCEPTS.enabled();
+        global_messages = ServerConfig.GLOBAL_MESSAGES.bucket();
+        global_accepts = ServerConfig.GLOBAL_ACCEPTS.bucket();
+
+        conn_messages_exceeded = new Counter();
+        ip_messages_exceeded = new Counter();
+        global_messages_exceeded = new Counter();
+        ip_accepts_exceeded = new Counter();
+        global_accepts_exceeded = new Counter();
+    }
+
+    /**
+     * True if remote addresses are tracked and need sweeping.
+     */
+    boolean per_address() {
+        return per_address;
+    }
+
+    /**
+     * Checks a new connection from addr. Returns 0 to accept it now, a
+     * delay in nanoseconds to accept it later, DROPPED or DISCONNECTED.
+     */
+    long admit_accept(InetAddress addr) {
+        Peer peer = peer(addr);
+        long wait = 0;
+        long v;
+
+        if (peer != null) {
+            if ((v = check(ServerConfig.IP_ACCEPTS, peer.accepts, ip_accepts_exceeded)) < 0)
+                return v;
+
+            wait = v;
+        }
+
+        if ((v = check(ServerConfig.GLOBAL_ACCEPTS, global_accepts, global_accepts_exceeded)) < 0)
+            return v;
+
+        return Math.max(wait, v);
+    }
+
+    /**
+     * Checks one inbound frame from c, with the same verdicts as
+     * admit_accept().
+     */
+    long admit_message(Connection c) {
+        long wait = 0;
+        long v;
+
+        if ((v = check(ServerConfig.CONN_MESSAGES, c.messages, conn_messages_exceeded)) < 0)
+            return v;
+
+        wait = v;
+
+        if (c.peer != null) {
+            if ((v = check(ServerConfig.IP_MESSAGES, c.peer.messages, ip_messages_exceeded)) < 0)
+                return v;
+
+            wait = Math.max(wait, v);
+        }
+
+        if ((v = check(ServerConfig.GLOBAL_MESSAGES, global_messages, global_messages_exceeded)) < 0)
+            return v;
+
+        return Math.max(wait, v);
+    }
+
+    private static long check(Limit limit, TokenBucket bucket, Counter exceeded) {
+        if (bucket == null)
+            return 0;
+
+        if (limit.action == Action.DELAY) {
+            long wait = bucket.reserve();
+
+            if (wait > 0)
+                exceeded.increment();
+
+            return wait;
+        }
+
+        if (bucket.try_take())
+            return 0;
+
+        exceeded.increment();
+
+        return limit.action == Action.DROP ? DROPPED : DISCONNECTED;
+    }
+
+    /**
+     * Gives a newly opened connection its buckets.
+     */
+    void attach(Connection c, InetAddress addr) {
+        c.messages = ServerConfig.CONN_MESSAGES.bucket();
+        c.peer = peer(addr);
+
+        if (c.peer != null)
+            c.peer.connections.incrementAndGet();
+    }
+
+    /**
+     * Called once when a connection closes.
+     */
+    void detach(Connection c) {
+        if (c.peer != null)
+            c.peer.connections.decrementAndGet();
+    }
+
+    private Peer peer(InetAddress addr) {
+        if (!per_address || addr == null)
+            return null;
+
+        Peer peer = peers.get(addr);
+
+        if (peer == null) {
+            Peer fresh = new Peer();
+
+            peer = peers.putIfAbsent(addr, fresh);
+
+            if (peer == null)
+                peer = fresh;
+        }
+
+        return peer;
+    }
+
+    /**
+     * Forgets addresses with no connections whose buckets have refilled,
+     * since a fresh Peer would behave the same.
+     */
+    void sweep() {
+        Iterator<Peer> it = peers.values().iterator();
+
+        while (it.hasNext()) {
+            if (it.next().idle())
+                it.remove();
+        }
+    }
+
+    int peers() {
+        return peers.size();
+    }
+
+    public long conn_messages_exceeded() {
+        return conn_messages_exceeded.get();
+    }
+
+    public long ip_messages_exceeded() {
+        return ip_messages_exceeded.get();
+    }
+
+    public long global_messages_exceeded() {
+        return global_messages_exceeded.get();
+    }
+
+    public long ip_accepts_exceeded() {
+        return ip_accepts_exceeded.get();
+    }
+
+    public long global_accepts_exceeded() {
+        return global_accepts_exceeded.get();
+    }
+}
@@ -0,0 +1,210 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.*;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * ResumeToken
+ *
+ * What a draining server hands each user so it can pick up where it left
+ * off once the server is back: its nick, the journal sequence number of
+ * the first line it may not have received (-1 without a journal), when
+ * the token was issued and the channels it was in, signed with
+ * HMAC-SHA256:
+ *
+ *     nick seq time_ms #chan,#chan hex_mac
+ *
+ * A token that fails the check or has expired still names a nick, but
+ * earns nothing beyond what a plain USER frame would.
+ */
+public class ResumeToken {
+    public final String nick;
+    public final long seq;
+    public final long time;
+    public final Set<String> channels;
+    public final boolean valid;
+
+    private ResumeToken(String nick, long seq, long time, Set<String> channels, boolean valid) {
+        this.nick = nick;
+        this.seq = seq;
+        this.time = time;
+        this.channels = channels;
+        this.valid = valid;
+    }
+
+    /**
+     * Issues and checks tokens with one key. The key is jedirc.resume.secret
+     * if set, or else a random one kept, readable by its owner only, in
+     * the journal directory so that tokens outlive the process that
+     * issued them; with neither, every process has a key of its own and
+     * tokens only bring back nicks.
+     */
+    public static class Signer {
+        private static final String ALGORITHM = "HmacSHA256";
+        private static final String KEY_FILE = "resume.key";
+        private static final int KEY_SIZE = 32;
+        private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+        private final SecretKeySpec key;
+        private final long ttl_ms;
+
+        public Signer(byte[] key, long ttl_ms) {
+            this.key = new SecretKeySpec(key, ALGORITHM);
+            this.ttl_ms = ttl_ms;
+        }
+
+        public static Signer create(String secret, String journal_dir, long ttl_ms) throws IOException {
+            if (secret != null)
+                return new Signer(secret.getBytes(StandardCharsets.UTF_8), ttl_ms);
+
+            if (journal_dir == null)
+                return new Signer(random_key(), ttl_ms);
+
+            File file = new File(journal_dir, KEY_FILE);
+
+            // owner only: anyone who can read the key can forge tokens
+            if (file.length() == KEY_SIZE) {
+                owner_only(file);
+                return new Signer(Files.readAllBytes(file.toPath()), ttl_ms);
+            }
+
+            byte[] fresh = random_key();
+
+            file.delete();
+
+            try {
+                Files.createFile(file.toPath(), PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+            } catch (UnsupportedOperationException uoe) {
+                if (!file.createNewFile())
+                    throw new IOException("cannot create " + file);
+
+                owner_only(file);
+            }
+
+            try (OutputStream out = new FileOutputStream(file)) {
+                out.write(fresh);
+            }
+
+            return new Signer(fresh, ttl_ms);
+        }
+
+        public String issue(String nick, long seq, Collection<String> channels) {
+            StringBuilder sb = new StringBuilder();
+
+            sb.append(nick).append(' ').append(seq).append(' ').append(System.currentTimeMillis()).append(' ');
+
+            int n = 0;
+
+            for (String channel : channels) {
+                if (n++ > 0)
+                    sb.append(',');
+
+                sb.append(channel);
+            }
+
+            String body = sb.toString();
+
+            return body + ' ' + hex(mac(body));
+        }
+
+        /**
+         * Parses a token, or returns null if it is not one at all.
+         */
+        public ResumeToken read(String token) {
+            String[] parts = token.split(" ", -1);
+
+            if (parts.length != 5 || parts[0].isEmpty())
+                return null;
+
+            long seq, time;
+
+            try {
+                seq = Long.parseLong(parts[1]);
+                time = Long.parseLong(parts[2]);
+            } catch (NumberFormatException nfe) {
+                return null;
+            }
+
+            Set<String> channels = new LinkedHashSet<String>();
+
+            for (String channel : parts[3].split(",")) {
+                if (!channel.isEmpty())
+                    channels.add(channel);
+            }
+
+            String body = token.substring(0, token.lastIndexOf(' '));
+            long age = System.currentTimeMillis() - time;
+            boolean valid = MessageDigest.isEqual(mac(body), unhex(parts[4]))
+                    && age >= 0 && age <= ttl_ms;
+
+            return new ResumeToken(parts[0], seq, time, channels, valid);
+        }
+
+        private byte[] mac(String body) {
+            try {
+                Mac mac = Mac.getInstance(ALGORITHM);
+
+                mac.init(key);
+
+                return mac.doFinal(body.getBytes(StandardCharsets.UTF_8));
+            } catch (GeneralSecurityException gse) {
+                // every JRE ships HmacSHA256
+                throw new IllegalStateException(gse);
+            }
+        }
+
+        private static void owner_only(File file) throws IOException {
+            try {
+                Files.setPosixFilePermissions(file.toPath(), OWNER_ONLY);
+            } catch (UnsupportedOperationException uoe) {
+                file.setReadable(false, false);
+                file.setWritable(false, false);
+                file.setReadable(true, true);
+                file.setWritable(true, true);
+            }
+        }
+
+        private static byte[] random_key() {
+            byte[] key = new byte[KEY_SIZE];
+
+            new SecureRandom().nextBytes(key);
+
+            return key;
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes)
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+
+        return sb.toString();
+    }
+
+    private static byte[] unhex(String s) {
+        if ((s.length() & 1) != 0)
+            return new byte[0];
+
+        byte[] bytes = new byte[s.length() / 2];
+
+        for (int i = 0; i < bytes.length; i++) {
+            int hi = Character.digit(s.charAt(2 * i), 16);
+            int lo = Character.digit(s.charAt(2 * i + 1), 16);
+
+            if (hi < 0 || lo < 0)
+                return new byte[0];
+
+            bytes[i] = (byte)(hi << 4 | lo);
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,123 @@
+import java.util.*;
+import javax.swing.AbstractListModel;
+
+/**
+ * RosterModel
+ *
+ * The user list behind a JList. Nicks are kept sorted, ignoring case, for
+ * display and indexed by lower-cased nick, so a join or leave is a hash
+ * lookup, a binary search and one interval event instead of a rebuild;
+ * the JList only repaints the rows that moved. EDT only: network threads
+ * post changes through an EdtDispatcher.
+ */
+public class RosterModel extends AbstractListModel<String> {
+    private static final int BULK = 32;
+
+    /**
+     * Orders by the same lower-cased key the index uses, then by the nick
+     * itself; CASE_INSENSITIVE_ORDER alone calls some distinct keys equal
+     * ("i" and the dotless "\u0131"), which breaks the binary searches.
+     */
+    private static final Comparator<String> ORDER = new Comparator<String>() {
+        public int compare(String a, String b) {
+            int c = key(a).compareTo(key(b));
+
+            return c != 0 ? c : a.compareTo(b);
+        }
+    };
+
+    private final ArrayList<String> sorted;
+    private final HashMap<String, String> by_key;
+
+    public RosterModel() {
+        sorted = new ArrayList<String>();
+        by_key = new HashMap<String, String>();
+    }
+
+    public int getSize() {
+        return sorted.size();
+    }
+
+    public String getElementAt(int index) {
+        return sorted.get(index);
+    }
+
+    public boolean contains(String nick) {
+        return by_key.containsKey(key(nick));
+    }
+
+    /**
+     * Replaces the whole roster.
+     */
+    public void reset(String[] nicks) {
+        int old = sorted.size();
+
+        sorted.clear();
+        by_key.clear();
+
+        if (old > 0)
+            fireIntervalRemoved(this, 0, old - 1);
+
+        add_all(nicks);
+    }
+
+    /**
+     * Adds nicks not yet listed. A few are inserted one by one; a large
+     * batch, such as the tail of a snapshot, is appended and sorted in
+     * one go with a single change event.
+     */
+    public void add_all(String[] nicks) {
+        if (nicks.length < BULK) {
+            for (String nick : nicks)
+                add(nick);
+
+            return;
+        }
+
+        int old = sorted.size();
+
+        for (String nick : nicks) {
+            if (!nick.isEmpty() && by_key.put(key(nick), nick) == null)
+                sorted.add(nick);
+        }
+
+        if (sorted.size() == old)
+            return;
+
+        Collections.sort(sorted, ORDER);
+        fireIntervalAdded(this, old, sorted.size() - 1);
+        fireContentsChanged(this, 0, sorted.size() - 1);
+    }
+
+    public void add(String nick) {
+        if (nick.isEmpty() || by_key.containsKey(key(nick)))
+            return;
+
+        int index = -Collections.binarySearch(sorted, nick, ORDER) - 1;
+
+        by_key.put(key(nick), nick);
+        sorted.add(index, nick);
+        fireIntervalAdded(this, index, index);
+    }
+
+    public void remove(String nick) {
+        String listed = by_key.remove(key(nick));
+
+        if (listed == null)
+            return;
+
+        int index = Collections.binarySearch(sorted, listed, ORDER);
+
+        sorted.remove(index);
+        fireIntervalRemoved(this, index, index);
+    }
+
+    public void rename(String old, String nick) {
+        remove(old);
+        add(nick);
+    }
+
+    private static String key(String nick) {
+        return nick.toLowerCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,183 @@
+/**
+ * ServerConfig
+ *
+ * Tunables for JediServer, read once from -Djedirc.* system properties.
+ */
+public class ServerConfig {
+    public enum IoMode {
+        /** selector event loops, see EventLoop */
+        NIO,
+        /** a blocking reader and writer platform thread per connection */
+        THREADS,
+        /** as THREADS, on virtual threads where the runtime has them */
+        VIRTUAL
+    }
+
+    /** how connections are serviced */
+    public static final IoMode IO_MODE = IoMode.valueOf(
+            System.getProperty("jedirc.io_mode", "NIO").toUpperCase());
+
+    /** number of selector threads connections are spread across */
+    public static final int SELECTORS = Integer.getInteger("jedirc.selectors",
+            Runtime.getRuntime().availableProcessors());
+
+    /** pending connection queue length handed to bind() */
+    public static final int BACKLOG = Integer.getInteger("jedirc.backlog", 1024);
+
+    /** frames a connection may have queued before the slow-consumer policy applies */
+    public static final int OUTBOUND_CAPACITY = Integer.getInteger("jedirc.outbound.capacity", 1024);
+
+    /** what to do when a connection's outbound queue is full */
+    public static final OutboundQueue.Policy OUTBOUND_POLICY = OutboundQueue.Policy.valueOf(
+            System.getProperty("jedirc.outbound.policy", "DROP_OLDEST").toUpperCase());
+
+    /** how long the BLOCK policy waits for room before dropping the connection */
+    public static final long OUTBOUND_BLOCK_MS = Long.getLong("jedirc.outbound.block_ms", 50);
+
+    /** size of the pooled buffer queued frames are copied into for one write */
+    public static final int WRITE_BUFFER_SIZE = Integer.getInteger("jedirc.flush.bytes", 16 * 1024);
+
+    /**
+     * how long queued frames may wait for company before being flushed;
+     * 0 flushes at the end of the current event loop pass. NIO loops
+     * round a pending deadline up to the selector's millisecond timeout.
+     */
+    public static final long FLUSH_DELAY_US = Long.getLong("jedirc.flush.delay_us", 0);
+
+    /** TCP_NODELAY on client sockets; writes are already batched above TCP */
+    public static final boolean TCP_NODELAY = Boolean.parseBoolean(
+            System.getProperty("jedirc.tcp_nodelay", "true"));
+
+    /** silence after which a connection is pinged; 0 disables idle detection */
+    public static final long IDLE_MS = Long.getLong("jedirc.idle_ms", 30000);
+
+    /** how long a pinged connection has to answer before it is dropped */
+    public static final long PONG_TIMEOUT_MS = Long.getLong("jedirc.pong_timeout_ms", 10000);
+
+    /** how long a new connection has to send its USER frame; 0 leaves it to idle detection */
+    public static final long HANDSHAKE_TIMEOUT_MS = Long.getLong("jedirc.handshake.timeout_ms", 10000);
+
+    /** worker threads logging new users in off the NIO event loops */
+    public static final int HANDSHAKE_THREADS = Integer.getInteger("jedirc.handshake.threads",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    /** logins waiting for a worker; beyond this an event loop runs them itself */
+    public static final int HANDSHAKE_QUEUE = Integer.getInteger("jedirc.handshake.queue", 4096);
+
+    /** resolution of the timing wheel driving idle checks */
+    public static final long TIMER_TICK_MS = Long.getLong("jedirc.timer.tick_ms", 100);
+
+    /** slots in the timing wheel; one revolution is slots * tick */
+    public static final int TIMER_SLOTS = Integer.getInteger("jedirc.timer.slots", 512);
+
+    /**
+     * inbound frames per second one connection may send, and how many at
+     * once; each limit below is set with jedirc.limit.NAME.rate, .burst
+     * and .action (DELAY, DROP or DISCONNECT), and a rate of 0 disables it
+     */
+    public static final RateLimiter.Limit CONN_MESSAGES = RateLimiter.Limit.configure(
+            "conn_messages", 20, 40, RateLimiter.Action.DELAY);
+
+    /** inbound frames per second from all connections of one remote address */
+    public static final RateLimiter.Limit IP_MESSAGES = RateLimiter.Limit.configure(
+            "ip_messages", 0, 200, RateLimiter.Action.DROP);
+
+    /** inbound frames per second across the whole server */
+    public static final RateLimiter.Limit GLOBAL_MESSAGES = RateLimiter.Limit.configure(
+            "global_messages", 0, 10000, RateLimiter.Action.DELAY);
+
+    /** new connections per second from one remote address */
+    public static final RateLimiter.Limit IP_ACCEPTS = RateLimiter.Limit.configure(
+            "ip_accepts", 0, 20, RateLimiter.Action.DISCONNECT);
+
+    /** new connections per second across the whole server */
+    public static final RateLimiter.Limit GLOBAL_ACCEPTS = RateLimiter.Limit.configure(
+            "global_accepts", 0, 1000, RateLimiter.Action.DELAY);
+
+    /** channel every client joins on connect */
+    public static final String DEFAULT_CHANNEL = ChannelIndex.normalize(
+            System.getProperty("jedirc.default_channel", "#jedirc"));
+
+    /** lines of scrollback kept per channel and replayed on join; 0 disables */
+    public static final int HISTORY_LINES = Integer.getInteger("jedirc.history.lines", 100);
+
+    /** encoded bytes of scrollback kept per channel */
+    public static final int HISTORY_BYTES = Integer.getInteger("jedirc.history.bytes", 32 * 1024);
+
+    /** directory for the message journal; unset disables journaling */
+    public static final String JOURNAL_DIR = System.getProperty("jedirc.journal.dir");
+
+    /** size of each memory-mapped journal segment file */
+    public static final int JOURNAL_SEGMENT_MB = Integer.getInteger("jedirc.journal.segment_mb", 64);
+
+    /** segment files kept, the oldest deleted first; 0 keeps them all */
+    public static final int JOURNAL_RETAIN_SEGMENTS = Integer.getInteger("jedirc.journal.retain_segments", 16);
+
+    /** group commit interval: dirty journal pages are forced at most this often */
+    public static final long JOURNAL_SYNC_MS = Long.getLong("jedirc.journal.sync_ms", 10);
+
+    /** how long a graceful shutdown waits for queued frames to reach clients */
+    public static final long DRAIN_MS = Long.getLong("jedirc.drain_ms", 5000);
+
+    /** clients sent away by a graceful shutdown spread their return over this long */
+    public static final long RESUME_SPREAD_MS = Long.getLong("jedirc.resume.spread_ms", 10000);
+
+    /** how long a resume token stays good */
+    public static final long RESUME_TTL_MS = Long.getLong("jedirc.resume.ttl_ms", 600000);
+
+    /**
+     * key resume tokens are signed with; unset, a random one is kept in
+     * the journal directory, or made up afresh each run without one
+     */
+    public static final String RESUME_SECRET = System.getProperty("jedirc.resume.secret");
+
+    /** most journal lines replayed to a resuming user */
+    public static final int RESUME_LINES = Integer.getInteger("jedirc.resume.lines", 1000);
+
+    /**
+     * compression modes clients may negotiate: deflate, deflate-stream, or
+     * empty for none. deflate-stream holds a deflater and an inflater per
+     * connection, some 300 KB of native memory, so it is opt in
+     */
+    public static final String COMPRESS = System.getProperty("jedirc.compress", "deflate");
+
+    /** payloads shorter than this go out uncompressed */
+    public static final int COMPRESS_MIN_BYTES = Integer.getInteger("jedirc.compress.min_bytes", 128);
+
+    /** deflate level, 1 (fastest) to 9 (smallest) */
+    public static final int COMPRESS_LEVEL = Integer.getInteger("jedirc.compress.level", 6);
+
+    /** preset dictionary file for compression; unset uses a built-in one */
+    public static final String COMPRESS_DICT = System.getProperty("jedirc.compress.dict");
+
+    /** port other cluster nodes dial in on; 0 runs this server on its own */
+    public static final int CLUSTER_PORT = Integer.getInteger("jedirc.cluster.port", 0);
+
+    /**
+     * comma separated host:port cluster ports of the other nodes; listing
+     * this node as well is harmless, so every node can share one list
+     */
+    public static final String CLUSTER_PEERS = System.getProperty("jedirc.cluster.peers", "");
+
+    /** this node's name, unique in the cluster; defaults to hostname:cluster port */
+    public static final String CLUSTER_NODE = System.getProperty("jedirc.cluster.node");
+
+    /** frames queued for one peer node before further ones are dropped */
+    public static final int CLUSTER_QUEUE = Integer.getInteger("jedirc.cluster.queue", 65536);
+
+    /** publish ServerMetrics as an MBean */
+    public static final boolean METRICS_JMX = Boolean.parseBoolean(
+            System.getProperty("jedirc.metrics.jmx", "true"));
+
+    /** loopback port serving plain-text metrics at /metrics; 0 disables */
+    public static final int METRICS_HTTP_PORT = Integer.getInteger("jedirc.metrics.http_port", 0);
+
+    /** most direct memory the buffer pool keeps, split evenly across its size classes */
+    public static final int POOL_MAX_MB = Integer.getInteger("jedirc.pool.max_mb", 64);
+
+    /** track pooled buffers and frames to catch double releases and leaks */
+    public static final boolean POOL_DEBUG = Boolean.getBoolean("jedirc.pool.debug");
+
+    private ServerConfig() {
+    }
+}
@@ -0,0 +1,20 @@
+/**
+ * ServerListener
+ *
+ * Observer of a ChatServer. Callbacks arrive on the server's network
+ * threads and must return quickly; UI listeners hand them off instead of
+ * doing work in place.
+ *
+ * User callbacks cover this server's own users and carry the roster
+ * sequence number of the change, which only ever grows; see
+ * ChatServer.roster() for the matching snapshot.
+ */
+public interface ServerListener {
+    void on_message(String message);
+
+    void on_user_joined(long seq, int id, String user);
+
+    void on_user_left(long seq, int id, String user);
+
+    void on_user_renamed(long seq, int id, String old, String user);
+}
@@ -0,0 +1,455 @@
+import com.sun.net.httpserver.*;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import javax.management.*;
+
+/**
+ * ServerMetrics
+ *
+ * Counters and gauges for one ChatServer. The recording methods are
+ * called on the hot paths and only bump striped counters or the fan-out
+ * and handshake histograms; rates, queue depths and the text rendering
+ * are worked out when someone asks. Published over JMX and, if a port
+ * is configured, as plain text at http://127.0.0.1:port/metrics.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+    private static final long TICK_MILLIS = 1000;
+
+    private final ClientRegistry<Connection> clients;
+    private final RateLimiter limiter;
+    private final Counter accepts;
+    private final Counter closes;
+    private final Counter messages_in;
+    private final Counter messages_out;
+    private final Counter bytes_in;
+    private final Counter bytes_out;
+    private final Counter writes;
+    private final Counter handshake_timeouts;
+    private final Counter compressed_raw;
+    private final Counter compressed_wire;
+    private final LatencyHistogram fan_out;
+    private final LatencyHistogram handshake;
+
+    private volatile double accepts_rate;
+    private volatile double messages_in_rate;
+    private volatile double messages_out_rate;
+
+    private Thread ticker;
+    private volatile boolean ticking;
+    private ObjectName name;
+    private HttpServer http;
+
+    public ServerMetrics(ClientRegistry<Connection> clients, RateLimiter limiter) {
+        this.clients = clients;
+        this.limiter = limiter;
+
+        accepts = new Counter();
+        closes = new Counter();
+        messages_in = new Counter();
+        messages_out = new Counter();
+        bytes_in = new Counter();
+        bytes_out = new Counter();
+        writes = new Counter();
+        handshake_timeouts = new Counter();
+        compressed_raw = new Counter();
+        compressed_wire = new Counter();
+        fan_out = new LatencyHistogram();
+        handshake = new LatencyHistogram();
+    }
+
+    void accepted() {
+        accepts.increment();
+    }
+
+    void closed() {
+        closes.increment();
+    }
+
+    void message_in() {
+        messages_in.increment();
+    }
+
+    void message_out() {
+        messages_out.increment();
+    }
+
+    void read(long n) {
+        bytes_in.add(n);
+    }
+
+    /**
+     * One socket write call that wrote n bytes.
+     */
+    void wrote(long n) {
+        bytes_out.add(n);
+        writes.increment();
+    }
+
+    void fanned_out(long nanos) {
+        fan_out.record(nanos);
+    }
+
+    /**
+     * A connection became a ready user nanos after it was accepted.
+     */
+    void handshaken(long nanos) {
+        handshake.record(nanos);
+    }
+
+    void handshake_timed_out() {
+        handshake_timeouts.increment();
+    }
+
+    /**
+     * A frame of raw bytes went out compressed to wire bytes.
+     */
+    void compressed(long raw, long wire) {
+        compressed_raw.add(raw);
+        compressed_wire.add(wire);
+    }
+
+    /**
+     * Starts the rate ticker and publishes the metrics for the server
+     * listening on port. Failing to publish is reported, not fatal.
+     */
+    public void start(int port) {
+        ticking = true;
+        ticker = new Thread(new Runnable() {
+            public void run() {
+                tick_loop();
+            }
+        }, "jedirc-metrics");
+        ticker.setDaemon(true);
+        ticker.start();
+
+        if (ServerConfig.METRICS_JMX) {
+            try {
+                name = new ObjectName("jedirc:type=ChatServer,port=" + port);
+                ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            } catch (JMException e) {
+                System.err.println(e.getMessage());
+                name = null;
+            }
+        }
+
+        if (ServerConfig.METRICS_HTTP_PORT > 0) {
+            try {
+                http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(),
+                        ServerConfig.METRICS_HTTP_PORT), 0);
+                http.createContext("/metrics", new HttpHandler() {
+                    public void handle(HttpExchange exchange) throws IOException {
+                        serve(exchange);
+                    }
+                });
+                http.start();
+            } catch (IOException ioe) {
+                System.err.println(ioe.getMessage());
+                http = null;
+            }
+        }
+    }
+
+    public void stop() {
+        ticking = false;
+
+        if (ticker != null)
+            ticker.interrupt();
+
+        if (name != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+            } catch (JMException e) {
+                System.err.println(e.getMessage());
+            }
+
+            name = null;
+        }
+
+        if (http != null) {
+            http.stop(0);
+            http = null;
+        }
+    }
+
+    private void tick_loop() {
+        long last = System.nanoTime();
+        long last_accepts = accepts.get();
+        long last_in = messages_in.get();
+        long last_out = messages_out.get();
+
+        while (ticking) {
+            try {
+                Thread.sleep(TICK_MILLIS);
+            } catch (InterruptedException ie) {
+                break;
+            }
+
+            long now = System.nanoTime();
+            double secs = (now - last) / 1e9;
+            long a = accepts.get(), in = messages_in.get(), out = messages_out.get();
+
+            accepts_rate = (a - last_accepts) / secs;
+            messages_in_rate = (in - last_in) / secs;
+            messages_out_rate = (out - last_out) / secs;
+
+            last = now;
+            last_accepts = a;
+            last_in = in;
+            last_out = out;
+        }
+    }
+
+    private void serve(HttpExchange exchange) throws IOException {
+        byte[] body = render().getBytes(StandardCharsets.UTF_8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(200, body.length);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Every metric as "name value" lines.
+     */
+    public String render() {
+        long[] depth = outbound_depth();
+        StringBuilder sb = new StringBuilder(1024);
+
+        line(sb, "jedirc_connections", getConnections());
+        line(sb, "jedirc_users", getUsers());
+        line(sb, "jedirc_accepts_total", getAccepts());
+        line(sb, "jedirc_accepts_per_second", getAcceptsPerSecond());
+        line(sb, "jedirc_messages_in_total", getMessagesIn());
+        line(sb, "jedirc_messages_in_per_second", getMessagesInPerSecond());
+        line(sb, "jedirc_messages_out_total", getMessagesOut());
+        line(sb, "jedirc_messages_out_per_second", getMessagesOutPerSecond());
+        line(sb, "jedirc_bytes_in_total", getBytesIn());
+        line(sb, "jedirc_bytes_out_total", getBytesOut());
+        line(sb, "jedirc_socket_writes_total", getSocketWrites());
+        line(sb, "jedirc_fan_out_total", getFanOutCount());
+        line(sb, "jedirc_fan_out_mean_us", getFanOutMeanMicros());
+        line(sb, "jedirc_fan_out_p50_us", getFanOutP50Micros());
+        line(sb, "jedirc_fan_out_p99_us", getFanOutP99Micros());
+        line(sb, "jedirc_fan_out_max_us", getFanOutMaxMicros());
+        line(sb, "jedirc_handshakes_total", getHandshakeCount());
+        line(sb, "jedirc_handshake_mean_ms", getHandshakeMeanMillis());
+        line(sb, "jedirc_handshake_p50_ms", getHandshakeP50Millis());
+        line(sb, "jedirc_handshake_p99_ms", getHandshakeP99Millis());
+        line(sb, "jedirc_handshake_max_ms", getHandshakeMaxMillis());
+        line(sb, "jedirc_handshake_timeouts_total", getHandshakeTimeouts());
+        line(sb, "jedirc_compressed_raw_bytes_total", getCompressedRawBytes());
+        line(sb, "jedirc_compressed_wire_bytes_total", getCompressedWireBytes());
+        line(sb, "jedirc_outbound_queued", depth[0]);
+        line(sb, "jedirc_outbound_max_depth", depth[1]);
+        line(sb, "jedirc_dropped_frames_total", getDroppedFrames());
+        line(sb, "jedirc_dropped_connections_total", getDroppedConnections());
+        line(sb, "jedirc_blocked_offers_total", getBlockedOffers());
+        line(sb, "jedirc_block_timeouts_total", getBlockTimeouts());
+        line(sb, "jedirc_pool_bytes", getPoolBytes());
+        line(sb, "jedirc_pool_buffers_in_use", getPoolBuffersInUse());
+        line(sb, "jedirc_pool_exhausted_total", getPoolExhausted());
+        line(sb, "jedirc_pool_leaks_total", getPoolLeaks());
+        line(sb, "jedirc_limit_conn_messages_exceeded_total", getConnMessagesLimited());
+        line(sb, "jedirc_limit_ip_messages_exceeded_total", getIpMessagesLimited());
+        line(sb, "jedirc_limit_global_messages_exceeded_total", getGlobalMessagesLimited());
+        line(sb, "jedirc_limit_ip_accepts_exceeded_total", getIpAcceptsLimited());
+        line(sb, "jedirc_limit_global_accepts_exceeded_total", getGlobalAcceptsLimited());
+
+        return sb.toString();
+    }
+
+    private static void line(StringBuilder sb, String name, long value) {
+        sb.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void line(StringBuilder sb, String name, double value) {
+        sb.append(name).append(' ').append(String.format(Locale.ROOT, "%.1f", value)).append('\n');
+    }
+
+    /**
+     * Frames queued across all connections, and the deepest single queue.
+     * Walks every connection, so only done when asked.
+     */
+    private long[] outbound_depth() {
+        long total = 0, max = 0;
+
+        for (Connection c : clients.snapshot()) {
+            int n = c.outbound.size();
+
+            total += n;
+            max = Math.max(max, n);
+        }
+
+        return new long[] { total, max };
+    }
+
+    public long getConnections() {
+        return accepts.get() - closes.get();
+    }
+
+    public int getUsers() {
+        return clients.size();
+    }
+
+    public long getAccepts() {
+        return accepts.get();
+    }
+
+    public double getAcceptsPerSecond() {
+        return accepts_rate;
+    }
+
+    public long getMessagesIn() {
+        return messages_in.get();
+    }
+
+    public double getMessagesInPerSecond() {
+        return messages_in_rate;
+    }
+
+    public long getMessagesOut() {
+        return messages_out.get();
+    }
+
+    public double getMessagesOutPerSecond() {
+        return messages_out_rate;
+    }
+
+    public long getBytesIn() {
+        return bytes_in.get();
+    }
+
+    public long getBytesOut() {
+        return bytes_out.get();
+    }
+
+    public long getSocketWrites() {
+        return writes.get();
+    }
+
+    public long getFanOutCount() {
+        return fan_out.count();
+    }
+
+    public double getFanOutMeanMicros() {
+        return fan_out.mean() / 1e3;
+    }
+
+    public double getFanOutP50Micros() {
+        return fan_out.percentile(0.50) / 1e3;
+    }
+
+    public double getFanOutP99Micros() {
+        return fan_out.percentile(0.99) / 1e3;
+    }
+
+    public double getFanOutMaxMicros() {
+        return fan_out.max() / 1e3;
+    }
+
+    public long getHandshakeCount() {
+        return handshake.count();
+    }
+
+    public double getHandshakeMeanMillis() {
+        return handshake.mean() / 1e6;
+    }
+
+    public double getHandshakeP50Millis() {
+        return handshake.percentile(0.50) / 1e6;
+    }
+
+    public double getHandshakeP99Millis() {
+        return handshake.percentile(0.99) / 1e6;
+    }
+
+    public double getHandshakeMaxMillis() {
+        return handshake.max() / 1e6;
+    }
+
+    public long getHandshakeTimeouts() {
+        return handshake_timeouts.get();
+    }
+
+    public long getCompressedRawBytes() {
+        return compressed_raw.get();
+    }
+
+    public long getCompressedWireBytes() {
+        return compressed_wire.get();
+    }
+
+    public long getOutboundQueued() {
+        return outbound_depth()[0];
+    }
+
+    public long getOutboundMaxDepth() {
+        return outbound_depth()[1];
+    }
+
+    public long getDroppedFrames() {
+        return OutboundQueue.dropped_frames();
+    }
+
+    public long getDroppedConnections() {
+        return OutboundQueue.dropped_connections();
+    }
+
+    public long getBlockedOffers() {
+        return OutboundQueue.blocked();
+    }
+
+    public long getBlockTimeouts() {
+        return OutboundQueue.block_timeouts();
+    }
+
+    public long getPoolBytes() {
+        return BufferPool.slab_bytes();
+    }
+
+    public long getPoolBuffersInUse() {
+        return BufferPool.in_use();
+    }
+
+    public long getPoolExhausted() {
+        return BufferPool.exhausted();
+    }
+
+    public long getPoolLeaks() {
+        return BufferPool.leaks();
+    }
+
+    public long getConnMessagesLimited() {
+        return limiter.conn_messages_exceeded();
+    }
+
+    public long getIpMessagesLimited() {
+        return limiter.ip_messages_exceeded();
+    }
+
+    public long getGlobalMessagesLimited() {
+        return limiter.global_messages_exceeded();
+    }
+
+    public long getIpAcceptsLimited() {
+        return limiter.ip_accepts_exceeded();
+    }
+
+    public long getGlobalAcceptsLimited() {
+        return limiter.global_accepts_exceeded();
+    }
+
+    public void resetFanOut() {
+        fan_out.reset();
+    }
+
+    public void resetHandshakes() {
+        handshake.reset();
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * ServerMetricsMBean
+ *
+ * JMX view of ServerMetrics. JMX only recognises getX() methods as
+ * attributes, hence the bean-style names.
+ */
+public interface ServerMetricsMBean {
+    long getConnections();
+
+    int getUsers();
+
+    long getAccepts();
+
+    double getAcceptsPerSecond();
+
+    long getMessagesIn();
+
+    double getMessagesInPerSecond();
+
+    long getMessagesOut();
+
+    double getMessagesOutPerSecond();
+
+    long getBytesIn();
+
+    long getBytesOut();
+
+    long getSocketWrites();
+
+    long getFanOutCount();
+
+    double getFanOutMeanMicros();
+
+    double getFanOutP50Micros();
+
+    double getFanOutP99Micros();
+
+    double getFanOutMaxMicros();
+
+    long getHandshakeCount();
+
+    double getHandshakeMeanMillis();
+
+    double getHandshakeP50Millis();
+
+    double getHandshakeP99Millis();
+
+    double getHandshakeMaxMillis();
+
+    long getHandshakeTimeouts();
+
+    long getCompressedRawBytes();
+
+    long getCompressedWireBytes();
+
+    long getOutboundQueued();
+
+    long getOutboundMaxDepth();
+
+    long getDroppedFrames();
+
+    long getDroppedConnections();
+
+    long getBlockedOffers();
+
+    long getBlockTimeouts();
+
+    long getPoolBytes();
+
+    long getPoolBuffersInUse();
+
+    long getPoolExhausted();
+
+    long getPoolLeaks();
+
+    long getConnMessagesLimited();
+
+    long getIpMessagesLimited();
+
+    long getGlobalMessagesLimited();
+
+    long getIpAcceptsLimited();
+
+    long getGlobalAcceptsLimited();
+
+    void resetFanOut();
+
+    void resetHandshakes();
+}
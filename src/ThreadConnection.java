@@ -0,0 +1,162 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * ThreadConnection
+ *
+ * A blocking connection with a reader thread running the plain read loop
+ * and a writer thread draining the outbound queue, for the THREADS and
+ * VIRTUAL io modes. Neither thread ever blocks while holding a monitor,
+ * so on virtual threads the carrier is always released. The writer
+ * copies everything queued into a pooled buffer and writes it in one
+ * call.
+ */
+public class ThreadConnection extends Connection implements Runnable {
+    private static final int READ_BUFFER_SIZE = 8 * 1024;
+    private static final long FLUSH_DELAY_NANOS = TimeUnit.MICROSECONDS.toNanos(ServerConfig.FLUSH_DELAY_US);
+
+    private final boolean virtual;
+    private volatile Thread writer;
+
+    ThreadConnection(ChatServer server, SocketChannel sock, int id, boolean virtual) {
+        super(server, sock, id);
+        this.virtual = virtual;
+    }
+
+    void start() {
+        writer = Threads.start("jedirc-writer-" + id, new Runnable() {
+            public void run() {
+                write_loop();
+            }
+        }, virtual);
+
+        Threads.start("jedirc-reader-" + id, this, virtual);
+    }
+
+    public void run() {
+        ByteBuffer buf = BufferPool.acquire(READ_BUFFER_SIZE);
+
+        try {
+            int n;
+
+            while (!closing && (n = sock.read(buf)) >= 0) {
+                server.metrics().read(n);
+                touch();
+                buf.flip();
+                read_frames(buf);
+                buf.compact();
+
+                // a single frame larger than the buffer
+                if (!buf.hasRemaining()) {
+                    ByteBuffer grown = BufferPool.acquire(buf.capacity() * 2);
+                    buf.flip();
+                    grown.put(buf);
+                    BufferPool.release(buf);
+                    buf = grown;
+                }
+            }
+        } catch (IOException ioe) {
+            if (sock.isOpen())
+                System.err.println(ioe.getMessage());
+        } finally {
+            BufferPool.release(buf);
+            decoder.end();
+        }
+
+        // a rejected connection is closed by the writer once it has flushed
+        if (!closing)
+            drop();
+    }
+
+    private void write_loop() {
+        ByteBuffer out = null;
+
+        try {
+            while (sock.isOpen()) {
+                if (!has_queued()) {
+                    // an idle writer holds no pooled buffer
+                    if (out != null) {
+                        BufferPool.release(out);
+                        out = null;
+                    }
+
+                    if (closing)
+                        break;
+
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                if (out == null)
+                    out = BufferPool.acquire(ServerConfig.WRITE_BUFFER_SIZE);
+
+                fill(out);
+
+                if (FLUSH_DELAY_NANOS > 0)
+                    linger(out);
+
+                out.flip();
+
+                while (out.hasRemaining())
+                    server.metrics().wrote(sock.write(out));
+
+                out.clear();
+            }
+        } catch (IOException ioe) {
+            if (sock.isOpen())
+                System.err.println(ioe.getMessage());
+        } finally {
+            if (out != null)
+                BufferPool.release(out);
+
+            discard_queued();
+        }
+
+        drop();
+    }
+
+    /**
+     * Waits up to the flush delay for more frames to fill a short write.
+     */
+    private void linger(ByteBuffer out) {
+        long deadline = System.nanoTime() + FLUSH_DELAY_NANOS;
+        long wait;
+
+        while (out.hasRemaining() && !closing && (wait = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(this, wait);
+            fill(out);
+        }
+    }
+
+    void schedule_flush() {
+        Thread t = writer;
+
+        if (t != null)
+            LockSupport.unpark(t);
+    }
+
+    boolean on_writer_thread() {
+        return Thread.currentThread() == writer;
+    }
+
+    /**
+     * Runs on the reader thread, which simply sleeps it off; the socket
+     * buffer fills up meanwhile and TCP pushes back on the peer.
+     */
+    void pause_reading(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long wait;
+
+        while (!closing && sock.isOpen() && (wait = deadline - System.nanoTime()) > 0)
+            LockSupport.parkNanos(this, wait);
+    }
+
+    @Override
+    void close() {
+        super.close();
+        schedule_flush();
+    }
+}
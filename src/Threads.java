@@ -0,0 +1,63 @@
+import java.lang.reflect.Method;
+
+/**
+ * Threads
+ *
+ * Starts platform or virtual threads. Virtual threads are created
+ * through reflection so the project still builds for older targets; on
+ * runtimes without them start() falls back to platform threads.
+ */
+public class Threads {
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method of_virtual = null, name = null, unstarted = null;
+
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+
+            of_virtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (ClassNotFoundException | NoSuchMethodException e) {
+            of_virtual = null;
+        }
+
+        OF_VIRTUAL = of_virtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private Threads() {
+    }
+
+    public static boolean virtual_supported() {
+        return OF_VIRTUAL != null;
+    }
+
+    public static Thread start(String name, Runnable task, boolean virtual) {
+        Thread t = virtual && virtual_supported() ? new_virtual(name, task) : null;
+
+        if (t == null) {
+            t = new Thread(task, name);
+            t.setDaemon(true);
+        }
+
+        t.start();
+
+        return t;
+    }
+
+    private static Thread new_virtual(String name, Runnable task) {
+        try {
+            Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+
+            return (Thread)UNSTARTED.invoke(builder, task);
+        } catch (ReflectiveOperationException e) {
+            System.err.println(e.getMessage());
+            return null;
+        }
+    }
+}
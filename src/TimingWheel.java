@@ -0,0 +1,155 @@
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * TimingWheel
+ *
+ * Hashed timing wheel: one thread advancing through a ring of slots, one
+ * per tick, each holding the timeouts that fall due on that slot in this
+ * or a later revolution. Scheduling and cancelling are O(1) from any
+ * thread, and a tick only touches the timeouts hashed to its slot, so a
+ * hundred thousand idle timers cost next to nothing. Timeouts fire a
+ * tick or two late, never early, and run on the wheel's thread, so tasks
+ * must be quick. A cancelled timeout is unlinked when its slot comes up.
+ */
+public class TimingWheel implements Runnable {
+    private final String name;
+    private final long tick_nanos;
+    private final Timeout[] slots;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> incoming;
+    private volatile boolean running;
+    private Thread thread;
+    private long start;
+    private long tick;
+
+    public static final class Timeout {
+        private final Runnable task;
+        private final long deadline;
+        private long rounds;
+        private Timeout next;
+        private volatile boolean cancelled;
+
+        Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean is_cancelled() {
+            return cancelled;
+        }
+    }
+
+    public TimingWheel(String name, long tick_ms, int slots) {
+        this.name = name;
+        this.tick_nanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tick_ms));
+        this.slots = new Timeout[Integer.highestOneBit(Math.max(2, slots - 1)) << 1];
+        this.mask = this.slots.length - 1;
+
+        incoming = new ConcurrentLinkedQueue<Timeout>();
+    }
+
+    public void start() {
+        running = true;
+        start = System.nanoTime();
+
+        thread = new Thread(this, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void stop() {
+        running = false;
+
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    /**
+     * Runs task on the wheel's thread once delay_ms has passed, unless
+     * the returned Timeout is cancelled first.
+     */
+    public Timeout schedule(Runnable task, long delay_ms) {
+        Timeout t = new Timeout(task, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay_ms));
+
+        incoming.add(t);
+
+        return t;
+    }
+
+    public void run() {
+        while (running) {
+            long deadline = start + (tick + 1) * tick_nanos;
+            long wait;
+
+            while (running && (wait = deadline - System.nanoTime()) > 0)
+                LockSupport.parkNanos(this, wait);
+
+            if (!running)
+                break;
+
+            transfer();
+            expire((int)(tick & mask));
+            tick++;
+        }
+    }
+
+    /**
+     * Hashes newly scheduled timeouts into their slots. Overdue ones land
+     * on the current slot and fire this tick.
+     */
+    private void transfer() {
+        Timeout t;
+
+        while ((t = incoming.poll()) != null) {
+            if (t.cancelled)
+                continue;
+
+            long due = Math.max((t.deadline - start + tick_nanos - 1) / tick_nanos, tick);
+            int slot = (int)(due & mask);
+
+            t.rounds = (due - tick) / slots.length;
+            t.next = slots[slot];
+            slots[slot] = t;
+        }
+    }
+
+    private void expire(int slot) {
+        Timeout prev = null;
+        Timeout t = slots[slot];
+
+        while (t != null) {
+            Timeout next = t.next;
+
+            if (t.cancelled || t.rounds == 0) {
+                if (prev == null)
+                    slots[slot] = next;
+                else
+                    prev.next = next;
+
+                t.next = null;
+
+                if (!t.cancelled)
+                    fire(t);
+            } else {
+                t.rounds--;
+                prev = t;
+            }
+
+            t = next;
+        }
+    }
+
+    private void fire(Timeout t) {
+        try {
+            t.task.run();
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,61 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * TokenBucket
+ *
+ * Lock-free token bucket in its GCRA form: instead of a token count it
+ * keeps the time at which the bucket will next be full, in one
+ * AtomicLong, so taking a token is a nanoTime() and a CAS and never
+ * allocates. Refills at rate tokens per second and holds up to burst.
+ */
+public class TokenBucket {
+    private final long interval;
+    private final long tolerance;
+    private final AtomicLong full_at;
+
+    public TokenBucket(double rate, int burst) {
+        interval = Math.max(1, (long)(1e9 / rate));
+        tolerance = interval * (Math.max(1, burst) - 1);
+        full_at = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * Takes a token if one is available.
+     */
+    public boolean try_take() {
+        while (true) {
+            long now = System.nanoTime();
+            long t = full_at.get();
+            long base = t - now > 0 ? t : now;
+
+            if (base - now > tolerance)
+                return false;
+
+            if (full_at.compareAndSet(t, base + interval))
+                return true;
+        }
+    }
+
+    /**
+     * Takes a token whether or not one is available, going into debt if
+     * need be, and returns how many nanoseconds the caller should wait
+     * before acting on it.
+     */
+    public long reserve() {
+        while (true) {
+            long now = System.nanoTime();
+            long t = full_at.get();
+            long base = t - now > 0 ? t : now;
+
+            if (full_at.compareAndSet(t, base + interval))
+                return Math.max(0, base - now - tolerance);
+        }
+    }
+
+    /**
+     * True once the bucket has refilled completely.
+     */
+    public boolean is_full() {
+        return full_at.get() - System.nanoTime() <= 0;
+    }
+}